@@ -0,0 +1,28 @@
+package org.nuxeo.vocapia.converter;
+
+import org.nuxeo.ecm.platform.video.convert.BaseVideoConversionConverter;
+
+/**
+ * Copy the AAC stream of an MP4 audio file to a raw ADTS stream, without
+ * re-encoding it.
+ */
+public class AacRemuxer extends BaseVideoConversionConverter {
+
+    public static final String TMP_DIRECTORY_PREFIX = "remuxAac";
+
+    @Override
+    protected String getVideoMimeType() {
+        return AudioFormat.AAC.mimeType;
+    }
+
+    @Override
+    protected String getVideoExtension() {
+        return AudioFormat.AAC.extension;
+    }
+
+    @Override
+    protected String getTmpDirectoryPrefix() {
+        return TMP_DIRECTORY_PREFIX;
+    }
+
+}
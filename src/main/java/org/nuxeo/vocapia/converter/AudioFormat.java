@@ -0,0 +1,179 @@
+package org.nuxeo.vocapia.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Audio formats the transcription service decodes, so that media already in
+ * one of them can be uploaded without being transcoded.
+ */
+public enum AudioFormat {
+
+    MP3("audio/mpeg", ".mp3", false, "audio/mp3", "audio/mpeg3",
+            "audio/x-mpeg", "audio/x-mp3"),
+
+    AAC("audio/aac", ".aac", false, "audio/aacp", "audio/x-aac"),
+
+    OGG("audio/ogg", ".ogg", false, "audio/x-ogg", "application/ogg",
+            "audio/vorbis", "audio/opus"),
+
+    WAV("audio/wav", ".wav", true, "audio/x-wav", "audio/wave",
+            "audio/vnd.wave"),
+
+    FLAC("audio/flac", ".flac", true, "audio/x-flac"),
+
+    /**
+     * AAC in an MP4 container, remuxed to {@link #AAC} as the index of the
+     * container may be stored after the audio data.
+     */
+    M4A("audio/mp4", ".m4a", false, "audio/x-m4a", "audio/m4a");
+
+    public static final int HEADER_LENGTH = 12;
+
+    public final String mimeType;
+
+    public final String extension;
+
+    /** Uncompressed or losslessly compressed, hence a large upload. */
+    public final boolean lossless;
+
+    protected final List<String> aliases;
+
+    private AudioFormat(String mimeType, String extension, boolean lossless,
+            String... aliases) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+        this.lossless = lossless;
+        this.aliases = Arrays.asList(aliases);
+    }
+
+    /**
+     * @return true if the media must be remuxed, without being re-encoded,
+     *         before being uploaded
+     */
+    public boolean needsRemux() {
+        return this == M4A;
+    }
+
+    /**
+     * @return the format of the media, from its MIME type or else from the
+     *         first bytes of its content, or null if it is not an audio
+     *         format accepted as is (e.g. a video container)
+     */
+    public static AudioFormat detect(Blob media) throws IOException {
+        String mimeType = media.getMimeType();
+        if (mimeType != null) {
+            AudioFormat format = forMimeType(mimeType);
+            if (format != null) {
+                return format;
+            }
+            if (mimeType.trim().toLowerCase(Locale.ENGLISH).startsWith(
+                    "video/")) {
+                return null;
+            }
+        }
+        // missing or generic MIME type: probe the content
+        InputStream in = media.getStream();
+        if (in == null) {
+            return null;
+        }
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            int length = 0;
+            int n;
+            while (length < header.length
+                    && (n = in.read(header, length, header.length - length)) > 0) {
+                length += n;
+            }
+            return probe(header, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the format of the MIME type, parameters ignored, or null
+     */
+    public static AudioFormat forMimeType(String mimeType) {
+        mimeType = mimeType.toLowerCase(Locale.ENGLISH);
+        int i = mimeType.indexOf(';');
+        if (i >= 0) {
+            mimeType = mimeType.substring(0, i);
+        }
+        mimeType = mimeType.trim();
+        for (AudioFormat format : values()) {
+            if (format.mimeType.equals(mimeType)
+                    || format.aliases.contains(mimeType)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the format whose signature starts the content or null
+     */
+    public static AudioFormat probe(byte[] header, int length) {
+        if (length >= 4 && matches(header, 0, "fLaC")) {
+            return FLAC;
+        }
+        if (length >= 4 && matches(header, 0, "OggS")) {
+            return OGG;
+        }
+        if (length >= 12 && matches(header, 0, "RIFF")
+                && matches(header, 8, "WAVE")) {
+            return WAV;
+        }
+        if (length >= 12 && matches(header, 4, "ftyp")
+                && (matches(header, 8, "M4A ") || matches(header, 8, "M4B "))) {
+            return M4A;
+        }
+        if (length >= 3 && matches(header, 0, "ID3")) {
+            return MP3;
+        }
+        if (length >= 2 && (header[0] & 0xFF) == 0xFF
+                && (header[1] & 0xE0) == 0xE0) {
+            // frame sync: the layer bits are 0 for ADTS, set for MPEG audio
+            return (header[1] & 0x06) == 0 ? AAC : MP3;
+        }
+        return null;
+    }
+
+    protected static boolean matches(byte[] header, int offset,
+            String signature) {
+        for (int i = 0; i < signature.length(); i++) {
+            if (header[offset + i] != (byte) signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the format of an extracted file from its extension, MP3 by
+     *         default
+     */
+    public static AudioFormat forFile(File file) {
+        AudioFormat format = forFilename(file.getName());
+        return format == null ? MP3 : format;
+    }
+
+    /**
+     * @return the format of the file name extension or null
+     */
+    public static AudioFormat forFilename(String filename) {
+        String name = filename.toLowerCase(Locale.ENGLISH);
+        for (AudioFormat format : values()) {
+            if (name.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
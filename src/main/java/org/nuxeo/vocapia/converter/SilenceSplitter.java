@@ -0,0 +1,354 @@
+/*
+ * (C) Copyright 2013 Nuxeo SA (http://nuxeo.com/) and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package org.nuxeo.vocapia.converter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.platform.commandline.executor.api.CmdParameters;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandLineExecutorService;
+import org.nuxeo.ecm.platform.commandline.executor.api.CommandNotAvailable;
+import org.nuxeo.ecm.platform.commandline.executor.api.ExecResult;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Split a soundtrack into chunks of roughly the same duration, cutting in the
+ * middle of silences so that no word is split between two chunks.
+ *
+ * The silences are detected by the ffmpeg silencedetect filter whose report
+ * is read from the output of the command. The chunks are cut without
+ * re-encoding.
+ */
+public class SilenceSplitter {
+
+    private static final Log log = LogFactory.getLog(SilenceSplitter.class);
+
+    public static final String SILENCE_DETECT_COMMAND = "ffmpeg-silencedetect";
+
+    public static final String CUT_COMMAND = "ffmpeg-cut";
+
+    /**
+     * Chunks can be shorter or longer than the target duration by this ratio
+     * to end on a silence.
+     */
+    public static final double CUT_TOLERANCE = 0.5;
+
+    protected static final Pattern SILENCE_START = Pattern.compile("silence_start: *(-?[0-9.]+)");
+
+    protected static final Pattern SILENCE_END = Pattern.compile("silence_end: *(-?[0-9.]+)");
+
+    protected static final Pattern DURATION = Pattern.compile("Duration: *([0-9]+):([0-9]+):([0-9]+(?:\\.[0-9]+)?)");
+
+    protected final AudioFormat format;
+
+    public SilenceSplitter() {
+        this(AudioFormat.MP3);
+    }
+
+    /**
+     * @param format the format of the soundtracks to split, kept by the
+     *            chunks as they are cut by stream copy
+     */
+    public SilenceSplitter(AudioFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Part of a soundtrack stored in a temporary file.
+     */
+    public static class Chunk {
+
+        /** Position of the chunk in the original soundtrack, in seconds. */
+        public final double offset;
+
+        public final double duration;
+
+        public final File file;
+
+        public Chunk(double offset, double duration, File file) {
+            this.offset = offset;
+            this.duration = duration;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Chunk(%.3f, %.3f, %s)", offset, duration,
+                    file);
+        }
+    }
+
+    /**
+     * Duration and silences of a soundtrack, in seconds.
+     */
+    public static class SilenceAnalysis {
+
+        public final double duration;
+
+        public final List<double[]> silences;
+
+        public SilenceAnalysis(double duration, List<double[]> silences) {
+            this.duration = duration;
+            this.silences = silences;
+        }
+    }
+
+    /**
+     * Run the silence detection on the soundtrack.
+     *
+     * @return the analysis or null if the duration of the soundtrack could
+     *         not be read
+     */
+    public SilenceAnalysis analyze(File soundTrack) throws CommandNotAvailable {
+        CommandLineExecutorService cles = Framework.getLocalService(CommandLineExecutorService.class);
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter("inFilePath", soundTrack);
+        ExecResult result = cles.execCommand(SILENCE_DETECT_COMMAND, params);
+        if (!result.isSuccessful()) {
+            log.warn("Failed to detect the silences of " + soundTrack,
+                    result.getError());
+            return null;
+        }
+        double totalDuration = parseDuration(result.getOutput());
+        if (totalDuration <= 0) {
+            log.warn("Could not read the duration of " + soundTrack);
+            return null;
+        }
+        return new SilenceAnalysis(totalDuration, parseSilences(
+                result.getOutput(), totalDuration));
+    }
+
+    /**
+     * Split the MP3 soundtrack in chunks of about the target duration.
+     *
+     * @return the chunks in order or an empty list if the soundtrack is short
+     *         enough or could not be split: the caller is then expected to
+     *         process the soundtrack as a whole. The caller is responsible
+     *         for deleting the chunk files.
+     */
+    public List<Chunk> split(File soundTrack, double targetChunkDuration) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        CommandLineExecutorService cles = Framework.getLocalService(CommandLineExecutorService.class);
+        try {
+            SilenceAnalysis analysis = analyze(soundTrack);
+            if (analysis == null) {
+                return chunks;
+            }
+            double totalDuration = analysis.duration;
+            List<Double> cutPoints = computeCutPoints(analysis.silences,
+                    totalDuration, targetChunkDuration);
+            if (cutPoints.isEmpty()) {
+                return chunks;
+            }
+            double start = 0;
+            for (int i = 0; i <= cutPoints.size(); i++) {
+                double end = i < cutPoints.size() ? cutPoints.get(i)
+                        : totalDuration;
+                chunks.add(cut(cles, soundTrack, start, end - start,
+                        i == cutPoints.size()));
+                start = end;
+            }
+            return chunks;
+        } catch (CommandNotAvailable e) {
+            log.warn("Cannot split the soundtrack: " + e.getMessage());
+        } catch (IOException e) {
+            log.warn("Failed to split " + soundTrack, e);
+        }
+        for (Chunk chunk : chunks) {
+            FileUtils.deleteQuietly(chunk.file);
+        }
+        return new ArrayList<Chunk>();
+    }
+
+    /**
+     * Extract short excerpts of speech evenly spread over the soundtrack.
+     *
+     * @return the excerpts or an empty list if the soundtrack is not much
+     *         longer than the excerpts together or could not be analyzed. The
+     *         caller is responsible for deleting the excerpt files.
+     */
+    public List<Chunk> extractExcerpts(File soundTrack, int count,
+            double excerptDuration) {
+        List<Chunk> excerpts = new ArrayList<Chunk>();
+        if (count <= 0 || excerptDuration <= 0) {
+            return excerpts;
+        }
+        CommandLineExecutorService cles = Framework.getLocalService(CommandLineExecutorService.class);
+        try {
+            SilenceAnalysis analysis = analyze(soundTrack);
+            if (analysis == null
+                    || analysis.duration < 2 * count * excerptDuration) {
+                return excerpts;
+            }
+            for (double start : computeExcerptStarts(analysis.silences,
+                    analysis.duration, count, excerptDuration)) {
+                excerpts.add(cut(cles, soundTrack, start, excerptDuration,
+                        false));
+            }
+            return excerpts;
+        } catch (CommandNotAvailable e) {
+            log.warn("Cannot extract excerpts: " + e.getMessage());
+        } catch (IOException e) {
+            log.warn("Failed to extract excerpts of " + soundTrack, e);
+        }
+        for (Chunk excerpt : excerpts) {
+            FileUtils.deleteQuietly(excerpt.file);
+        }
+        return new ArrayList<Chunk>();
+    }
+
+    /**
+     * Center the excerpts on evenly spaced positions, moving the start of an
+     * excerpt after the silence it falls into if it still fits.
+     */
+    public static List<Double> computeExcerptStarts(List<double[]> silences,
+            double totalDuration, int count, double excerptDuration) {
+        List<Double> starts = new ArrayList<Double>();
+        double latestStart = Math.max(0, totalDuration - excerptDuration);
+        for (int i = 0; i < count; i++) {
+            double start = totalDuration * (i + 1) / (count + 1)
+                    - excerptDuration / 2;
+            start = Math.min(Math.max(0, start), latestStart);
+            for (double[] silence : silences) {
+                if (silence[0] <= start && start < silence[1]) {
+                    if (silence[1] <= latestStart) {
+                        start = silence[1];
+                    }
+                    break;
+                }
+            }
+            starts.add(Double.valueOf(start));
+        }
+        return starts;
+    }
+
+    protected Chunk cut(CommandLineExecutorService cles, File soundTrack,
+            double start, double duration, boolean last)
+            throws CommandNotAvailable, IOException {
+        // cut by stream copy, hence in the format of the soundtrack
+        File chunkFile = File.createTempFile("vocapia-chunk-",
+                format.extension);
+        CmdParameters params = new CmdParameters();
+        params.addNamedParameter("inFilePath", soundTrack);
+        params.addNamedParameter("outFilePath", chunkFile);
+        params.addNamedParameter("startTime", formatSeconds(start));
+        // do not lose the very end of the file to rounding errors
+        params.addNamedParameter("duration", formatSeconds(last ? duration + 1
+                : duration));
+        ExecResult result = cles.execCommand(CUT_COMMAND, params);
+        if (!result.isSuccessful() || chunkFile.length() == 0) {
+            FileUtils.deleteQuietly(chunkFile);
+            throw new IOException(String.format(
+                    "Failed to cut %s from %s (%d)", soundTrack,
+                    formatSeconds(start), result.getReturnCode()));
+        }
+        return new Chunk(start, duration, chunkFile);
+    }
+
+    protected static String formatSeconds(double seconds) {
+        return String.format(Locale.ENGLISH, "%.3f", seconds);
+    }
+
+    /**
+     * Choose the cut points: each chunk ends in the middle of the silence the
+     * closest to the target duration, or exactly at the target duration if no
+     * silence is found within the tolerance. The last chunk is allowed to be
+     * up to 1 + {@link #CUT_TOLERANCE} times the target duration.
+     *
+     * @param silences the [start, end] of the silences in seconds, in order
+     * @return the positions of the cuts in seconds, in order
+     */
+    public static List<Double> computeCutPoints(List<double[]> silences,
+            double totalDuration, double targetChunkDuration) {
+        List<Double> cutPoints = new ArrayList<Double>();
+        if (targetChunkDuration <= 0) {
+            return cutPoints;
+        }
+        double last = 0;
+        while (totalDuration - last > targetChunkDuration
+                * (1 + CUT_TOLERANCE)) {
+            double target = last + targetChunkDuration;
+            double min = last + targetChunkDuration * (1 - CUT_TOLERANCE);
+            double max = last + targetChunkDuration * (1 + CUT_TOLERANCE);
+            double cut = target;
+            double bestDistance = Double.MAX_VALUE;
+            for (double[] silence : silences) {
+                double middle = (silence[0] + silence[1]) / 2;
+                if (middle <= min || middle >= max) {
+                    continue;
+                }
+                double distance = Math.abs(middle - target);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    cut = middle;
+                }
+            }
+            cutPoints.add(Double.valueOf(cut));
+            last = cut;
+        }
+        return cutPoints;
+    }
+
+    /**
+     * Read the silences reported by the silencedetect filter. A silence still
+     * open at the end of the stream ends with it.
+     */
+    public static List<double[]> parseSilences(List<String> output,
+            double totalDuration) {
+        List<double[]> silences = new ArrayList<double[]>();
+        double start = -1;
+        for (String line : output) {
+            Matcher matcher = SILENCE_START.matcher(line);
+            if (matcher.find()) {
+                start = Math.max(0, Double.parseDouble(matcher.group(1)));
+                continue;
+            }
+            matcher = SILENCE_END.matcher(line);
+            if (matcher.find() && start >= 0) {
+                silences.add(new double[] { start,
+                        Double.parseDouble(matcher.group(1)) });
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            silences.add(new double[] { start, totalDuration });
+        }
+        return silences;
+    }
+
+    /**
+     * @return the duration of the input stream in seconds, or -1 if it is not
+     *         reported
+     */
+    public static double parseDuration(List<String> output) {
+        for (String line : output) {
+            Matcher matcher = DURATION.matcher(line);
+            if (matcher.find()) {
+                return Integer.parseInt(matcher.group(1)) * 3600
+                        + Integer.parseInt(matcher.group(2)) * 60
+                        + Double.parseDouble(matcher.group(3));
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,236 @@
+package org.nuxeo.vocapia.converter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineDescriptor;
+import org.nuxeo.ecm.platform.commandline.executor.service.CommandLineExecutorComponent;
+import org.nuxeo.runtime.services.streaming.AbstractStreamSource;
+
+/**
+ * Source of the MP3 soundtrack of a media file, encoded on the fly by an
+ * ffmpeg process writing to its standard output, so that the soundtrack can
+ * be uploaded while it is being encoded without any temporary file.
+ *
+ * Each call to {@link #getStream()} starts a new process. ffmpeg blocks on
+ * the pipe when the reader does not keep up: the pipe and the read buffer
+ * bound the memory used. Closing the stream before its end kills the
+ * process, closing it at the end fails if ffmpeg did.
+ *
+ * The encoding arguments are those of the contributed ffmpeg command of the
+ * extraction profile, so that both ways of extracting produce the same
+ * soundtrack.
+ */
+public class SoundTrackPipe extends AbstractStreamSource {
+
+    public static final String FFMPEG = "ffmpeg";
+
+    /** Command of the speech extraction profile. */
+    public static final String SPEECH_COMMAND = "ffmpeg-tospeech";
+
+    /** Command of the default extraction profile. */
+    public static final String DEFAULT_COMMAND = "ffmpeg-toany";
+
+    /**
+     * Log level of the process: only the errors, kept for the report of a
+     * failure.
+     */
+    public static final String LOG_LEVEL = "error";
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final int MAX_ERROR_LINES = 20;
+
+    protected final File mediaFile;
+
+    protected final List<String> arguments;
+
+    /**
+     * @param arguments the ffmpeg encoding arguments
+     */
+    public SoundTrackPipe(File mediaFile, List<String> arguments) {
+        this.mediaFile = mediaFile;
+        this.arguments = arguments;
+    }
+
+    /**
+     * @param commandName the contributed ffmpeg command whose encoding
+     *            arguments are used
+     */
+    public SoundTrackPipe(File mediaFile, String commandName) {
+        this(mediaFile, getEncodingArguments(commandName));
+    }
+
+    /**
+     * @return the arguments of the command between its input and its output,
+     *         with the log level of the pipe instead of its own
+     */
+    public static List<String> getEncodingArguments(String commandName) {
+        CommandLineDescriptor descriptor = CommandLineExecutorComponent.getCommandDescriptor(commandName);
+        if (descriptor == null) {
+            throw new IllegalArgumentException("Unknown command: "
+                    + commandName);
+        }
+        return parseEncodingArguments(descriptor.getParametersString());
+    }
+
+    protected static List<String> parseEncodingArguments(String parameters) {
+        List<String> arguments = new ArrayList<String>();
+        arguments.add("-v");
+        arguments.add(LOG_LEVEL);
+        String[] tokens = parameters.trim().split("\\s+");
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            if ("-i".equals(token) || "-v".equals(token)
+                    || "-loglevel".equals(token)) {
+                // skip the option and its value
+                i++;
+            } else if (!token.startsWith("#{")) {
+                arguments.add(token);
+            }
+        }
+        return arguments;
+    }
+
+    protected List<String> makeCommand() {
+        List<String> command = new ArrayList<String>();
+        command.add(FFMPEG);
+        command.add("-i");
+        command.add(mediaFile.getAbsolutePath());
+        command.addAll(arguments);
+        command.add("-f");
+        command.add("mp3");
+        command.add("pipe:1");
+        return command;
+    }
+
+    @Override
+    public InputStream getStream() throws IOException {
+        Process process = new ProcessBuilder(makeCommand()).start();
+        process.getOutputStream().close();
+        ErrorReader errors = new ErrorReader(process.getErrorStream());
+        errors.start();
+        return new ProcessOutput(process, errors);
+    }
+
+    @Override
+    public boolean canReopen() {
+        return true;
+    }
+
+    /**
+     * Consume the log of the process so that it never blocks on it, keeping
+     * the last lines for the error report.
+     */
+    protected static class ErrorReader extends Thread {
+
+        protected final InputStream in;
+
+        protected final LinkedList<String> lines = new LinkedList<String>();
+
+        protected ErrorReader(InputStream in) {
+            super("Nuxeo-Vocapia-ffmpeg-log");
+            setDaemon(true);
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (lines) {
+                        lines.add(line);
+                        if (lines.size() > MAX_ERROR_LINES) {
+                            lines.removeFirst();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // process killed
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+
+        protected String getLog() {
+            synchronized (lines) {
+                StringBuilder sb = new StringBuilder();
+                for (String line : lines) {
+                    sb.append('\n').append(line);
+                }
+                return sb.toString();
+            }
+        }
+    }
+
+    protected static class ProcessOutput extends FilterInputStream {
+
+        protected final Process process;
+
+        protected final ErrorReader errors;
+
+        protected boolean eof;
+
+        protected boolean closed;
+
+        protected ProcessOutput(Process process, ErrorReader errors) {
+            super(new BufferedInputStream(process.getInputStream(),
+                    BUFFER_SIZE));
+            this.process = process;
+            this.errors = errors;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            eof |= b < 0;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            eof |= n < 0;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            super.close();
+            if (!eof) {
+                // reader gave up, e.g. aborted upload
+                process.destroy();
+                return;
+            }
+            int exitCode;
+            try {
+                exitCode = process.waitFor();
+                errors.join(1000);
+            } catch (InterruptedException e) {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for ffmpeg");
+            }
+            if (exitCode != 0) {
+                throw new IOException("ffmpeg failed with exit code "
+                        + exitCode + errors.getLog());
+            }
+        }
+    }
+}
@@ -25,7 +25,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.impl.DocumentLocationImpl;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventBundle;
 import org.nuxeo.ecm.core.event.EventContext;
@@ -68,8 +67,7 @@ public class TranscriptionListener implements PostCommitEventListener {
         DocumentModel doc = docCtx.getSourceDocument();
         if (ctx.hasProperty(VIDEO_CHANGED_PROPERTY)) {
             TranscriptionService transcriptionService = Framework.getLocalService(TranscriptionService.class);
-            transcriptionService.launchTranscription(new DocumentLocationImpl(
-                    doc));
+            transcriptionService.requestTranscription(doc);
         }
     }
 }
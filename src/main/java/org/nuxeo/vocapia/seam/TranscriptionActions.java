@@ -1,6 +1,8 @@
 package org.nuxeo.vocapia.seam;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.jboss.seam.ScopeType;
@@ -16,6 +18,7 @@ import org.nuxeo.ecm.core.api.model.PropertyException;
 import org.nuxeo.ecm.platform.ui.web.api.NavigationContext;
 import org.nuxeo.ecm.platform.ui.web.invalidations.AutomaticDocumentBasedInvalidation;
 import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.vocapia.service.Transcription;
 import org.nuxeo.vocapia.service.TranscriptionService;
 import org.nuxeo.vocapia.service.TranscriptionStatus;
 
@@ -38,6 +41,12 @@ public class TranscriptionActions implements Serializable {
     @In(create = true)
     private Map<String, String> messages;
 
+    /**
+     * Sections of the documents displayed during the request, by document
+     * id, as the widget evaluates them several times.
+     */
+    protected transient Map<String, List<Map<String, Object>>> transcriptionSections;
+
     
     public boolean canLaunchTranscription(DocumentModel doc) throws PropertyException, ClientException {
         String language = (String) doc.getPropertyValue("dc:language");
@@ -51,7 +60,28 @@ public class TranscriptionActions implements Serializable {
     
     public void launchTranscription(DocumentModel doc) {
         TranscriptionService service = Framework.getLocalService(TranscriptionService.class);
-        service.launchTranscription(new DocumentLocationImpl(doc));
+        service.launchTranscription(doc);
+    }
+
+    /**
+     * @return the sections of the transcription, read from the compact blob
+     *         only when displayed
+     */
+    public List<Map<String, Object>> getTranscriptionSections(
+            DocumentModel doc) throws ClientException {
+        String id = doc.getId();
+        if (id == null) {
+            return Transcription.fromTranscribedDocument(doc).getSections();
+        }
+        if (transcriptionSections == null) {
+            transcriptionSections = new HashMap<String, List<Map<String, Object>>>();
+        }
+        List<Map<String, Object>> sections = transcriptionSections.get(id);
+        if (sections == null) {
+            sections = Transcription.fromTranscribedDocument(doc).getSections();
+            transcriptionSections.put(id, sections);
+        }
+        return sections;
     }
 
     public TranscriptionStatus getTranscriptionStatus(DocumentModel doc) {
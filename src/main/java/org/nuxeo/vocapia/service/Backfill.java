@@ -0,0 +1,103 @@
+package org.nuxeo.vocapia.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress and control of the bulk transcription of the result set of an
+ * NXQL query, performed by a {@link BackfillWork}.
+ */
+public class Backfill {
+
+    public enum State {
+        RUNNING, PAUSED, CANCELED, COMPLETED, FAILED
+    }
+
+    public final String id;
+
+    public final String repositoryName;
+
+    public final String query;
+
+    public final long startTime = System.currentTimeMillis();
+
+    protected final AtomicLong scanned = new AtomicLong();
+
+    protected final AtomicLong skipped = new AtomicLong();
+
+    protected final AtomicLong scheduled = new AtomicLong();
+
+    protected volatile State state = State.RUNNING;
+
+    /**
+     * Id of the last document processed: the result set is paged on ecm:uuid,
+     * null before the first page.
+     */
+    protected volatile String lastId;
+
+    public Backfill(String id, String repositoryName, String query) {
+        this.id = id;
+        this.repositoryName = repositoryName;
+        this.query = query;
+    }
+
+    /**
+     * @return the number of documents of the result set processed so far
+     */
+    public long getScannedCount() {
+        return scanned.get();
+    }
+
+    /**
+     * @return the number of documents that already had a transcription
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of transcriptions scheduled
+     */
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isFinished() {
+        return state == State.CANCELED || state == State.COMPLETED
+                || state == State.FAILED;
+    }
+
+    public synchronized void pause() {
+        if (state == State.RUNNING) {
+            state = State.PAUSED;
+        }
+    }
+
+    public synchronized void resume() {
+        if (state == State.PAUSED) {
+            state = State.RUNNING;
+        }
+    }
+
+    public synchronized void cancel() {
+        if (!isFinished()) {
+            state = State.CANCELED;
+        }
+    }
+
+    protected synchronized void finish(State finalState) {
+        if (!isFinished()) {
+            state = finalState;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "Backfill(%s, %s, scanned=%d, skipped=%d, scheduled=%d)", id,
+                state, scanned.get(), skipped.get(), scheduled.get());
+    }
+}
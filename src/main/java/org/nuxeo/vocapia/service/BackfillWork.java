@@ -0,0 +1,241 @@
+package org.nuxeo.vocapia.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.impl.DocumentLocationImpl;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Page through the result set of an NXQL query and schedule the transcription
+ * of the documents that do not have one yet.
+ *
+ * The transcriptions are scheduled at a bounded rate and only while the
+ * transcription queues are not too full, so that a backfill of a large
+ * archive floods neither the WorkManager nor the database. Each page is
+ * fetched in its own short transaction.
+ */
+public class BackfillWork extends AbstractWork {
+
+    private static final Log log = LogFactory.getLog(BackfillWork.class);
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_BACKFILL = "speech_transcription_backfill";
+
+    protected static final long PAUSE_CHECK_DELAY = 1000;
+
+    protected final Backfill backfill;
+
+    protected final int pageSize;
+
+    protected final long scheduleInterval;
+
+    protected final int maxQueued;
+
+    /**
+     * @param rate maximum number of transcriptions scheduled per minute
+     * @param maxQueued number of scheduled transcriptions above which the
+     *            backfill waits
+     */
+    public BackfillWork(Backfill backfill, int pageSize, int rate,
+            int maxQueued) {
+        this.backfill = backfill;
+        this.pageSize = pageSize;
+        this.scheduleInterval = rate > 0 ? 60 * 1000 / rate : 0;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Document of the result set.
+     */
+    protected static class Candidate {
+
+        protected final String id;
+
+        /** Null if the document already has a transcription. */
+        protected final DocumentLocation docLoc;
+
+        protected final double expectedDuration;
+
+        protected Candidate(String id, DocumentLocation docLoc,
+                double expectedDuration) {
+            this.id = id;
+            this.docLoc = docLoc;
+            this.expectedDuration = expectedDuration;
+        }
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY_SPEECH_TRANSCRIPTION_BACKFILL;
+    }
+
+    @Override
+    public String getTitle() {
+        return String.format("Speech Transcription backfill %s: %s",
+                backfill.id, backfill.query);
+    }
+
+    @Override
+    public void work() throws Exception {
+        setProgress(Progress.PROGRESS_INDETERMINATE);
+        // no transaction held while waiting: one per page instead
+        commitOrRollbackTransaction();
+        TranscriptionService service = Framework.getLocalService(TranscriptionService.class);
+        try {
+            while (!backfill.isFinished()) {
+                if (isSuspending()) {
+                    return;
+                }
+                if (backfill.getState() == Backfill.State.PAUSED) {
+                    // free the backfill thread: resuming schedules a new work
+                    return;
+                }
+                setStatus("backfill");
+                List<Candidate> page = fetchPage(service);
+                if (page.isEmpty()) {
+                    backfill.finish(Backfill.State.COMPLETED);
+                    break;
+                }
+                for (Candidate candidate : page) {
+                    if (candidate.docLoc == null) {
+                        backfill.skipped.incrementAndGet();
+                    } else {
+                        if (!awaitCapacity(service)
+                                || !sleep(scheduleInterval)) {
+                            // paused, canceled or suspending: the next page
+                            // starts at this document
+                            break;
+                        }
+                        service.launchTranscription(candidate.docLoc,
+                                candidate.expectedDuration);
+                        backfill.scheduled.incrementAndGet();
+                    }
+                    backfill.scanned.incrementAndGet();
+                    backfill.lastId = candidate.id;
+                }
+            }
+        } catch (Exception e) {
+            backfill.finish(Backfill.State.FAILED);
+            throw e;
+        } finally {
+            log.info(backfill);
+        }
+    }
+
+    /**
+     * Fetch the next page of the result set, the documents after the last one
+     * processed in the order of ecm:uuid. Unlike an offset, the position does
+     * not shift as documents are created or deleted and the database does
+     * not scan the previous pages again.
+     */
+    protected List<Candidate> fetchPage(final TranscriptionService service)
+            throws ClientException {
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        startTransaction();
+        try {
+            new UnrestrictedSessionRunner(backfill.repositoryName) {
+                @Override
+                public void run() throws ClientException {
+                    DocumentModelList page = session.query(
+                            makePageQuery(backfill.query, backfill.lastId),
+                            null, pageSize, 0, false);
+                    for (DocumentModel doc : page) {
+                        if (doc.hasFacet(TranscriptionWork.HAS_SPEECH_TRANSCRIPTION)) {
+                            candidates.add(new Candidate(doc.getId(), null, -1));
+                            continue;
+                        }
+                        candidates.add(new Candidate(doc.getId(),
+                                new DocumentLocationImpl(doc),
+                                service.estimateDuration(doc)));
+                    }
+                }
+            }.runUnrestricted();
+        } finally {
+            commitOrRollbackTransaction();
+        }
+        return candidates;
+    }
+
+    /**
+     * Restrict the query to the documents after the given id, ordered by id.
+     * An ORDER BY clause of the query is replaced.
+     */
+    protected static String makePageQuery(String query, String lastId) {
+        String upper = query.toUpperCase(Locale.ENGLISH);
+        int orderBy = upper.lastIndexOf(" ORDER BY ");
+        if (orderBy >= 0) {
+            query = query.substring(0, orderBy);
+            upper = upper.substring(0, orderBy);
+        }
+        if (lastId == null) {
+            return query + " ORDER BY ecm:uuid";
+        }
+        String after = String.format("ecm:uuid > '%s'", lastId);
+        int where = upper.indexOf(" WHERE ");
+        if (where < 0) {
+            return query + " WHERE " + after + " ORDER BY ecm:uuid";
+        }
+        // the clause of the query may contain an OR
+        int clause = where + " WHERE ".length();
+        return String.format("%s(%s) AND %s ORDER BY ecm:uuid",
+                query.substring(0, clause), query.substring(clause), after);
+    }
+
+    /**
+     * Wait while too many transcriptions are already scheduled.
+     *
+     * @return false if the backfill should stop for now
+     */
+    protected boolean awaitCapacity(TranscriptionService service)
+            throws InterruptedException {
+        while (maxQueued > 0
+                && service.getScheduledTranscriptionCount() >= maxQueued) {
+            if (!sleep(PAUSE_CHECK_DELAY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the work is suspending or the backfill was paused or
+     *         canceled in the meantime
+     */
+    protected boolean sleep(long delay) throws InterruptedException {
+        long end = System.currentTimeMillis() + delay;
+        long remaining = delay;
+        while (remaining > 0) {
+            if (isSuspending() || backfill.getState() != Backfill.State.RUNNING) {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, PAUSE_CHECK_DELAY));
+            remaining = end - System.currentTimeMillis();
+        }
+        return !isSuspending() && backfill.getState() == Backfill.State.RUNNING;
+    }
+
+    @Override
+    public int hashCode() {
+        return backfill.id.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        return backfill.id.equals(((BackfillWork) obj).backfill.id);
+    }
+}
@@ -0,0 +1,181 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.vocapia.service.TranscriptionCheckpoint.Stage;
+
+/**
+ * Directory of the {@link TranscriptionCheckpoint}s of the transcriptions in
+ * progress, one properties file per document and media property, next to the
+ * files the checkpoints refer to.
+ *
+ * The properties files are replaced atomically so that a crash while saving
+ * leaves the previous checkpoint.
+ */
+public class CheckpointStore {
+
+    private static final Log log = LogFactory.getLog(CheckpointStore.class);
+
+    protected static final String EXTENSION = ".properties";
+
+    protected final File directory;
+
+    public CheckpointStore(File directory) {
+        this.directory = directory;
+    }
+
+    public void init() throws IOException {
+        FileUtils.forceMkdir(directory);
+    }
+
+    public static String makeKey(String repositoryName, String docId,
+            String blobPropertyPath) {
+        return DigestUtils.md5Hex(repositoryName + "/" + docId + "/"
+                + blobPropertyPath);
+    }
+
+    /**
+     * @return a location in the store for a file of the checkpoint
+     */
+    public File getFile(TranscriptionCheckpoint checkpoint, String suffix) {
+        return new File(directory, checkpoint.getKey() + suffix);
+    }
+
+    /**
+     * @return the checkpoint or null if there is none or it cannot be read
+     */
+    public TranscriptionCheckpoint load(String key) {
+        File file = new File(directory, key + EXTENSION);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            TranscriptionCheckpoint checkpoint = new TranscriptionCheckpoint(
+                    properties.getProperty("repositoryName"),
+                    properties.getProperty("docId"),
+                    properties.getProperty("blobPropertyPath"),
+                    properties.getProperty("sourceDigest"));
+            checkpoint.stage = Stage.valueOf(properties.getProperty("stage"));
+            checkpoint.category = properties.getProperty("category");
+            checkpoint.soundTrack = getFile(properties, "soundTrack");
+            checkpoint.detectedLanguage = properties.getProperty("detectedLanguage");
+            checkpoint.language = properties.getProperty("language");
+            checkpoint.endpointName = properties.getProperty("endpointName");
+            checkpoint.jobId = properties.getProperty("jobId");
+            checkpoint.rawArchive = getFile(properties, "rawArchive");
+            return checkpoint;
+        } catch (IOException e) {
+            log.warn("Could not read transcription checkpoint " + file, e);
+        } catch (RuntimeException e) {
+            log.warn("Invalid transcription checkpoint " + file, e);
+        }
+        return null;
+    }
+
+    protected static File getFile(Properties properties, String name) {
+        String path = properties.getProperty(name);
+        return path == null ? null : new File(path);
+    }
+
+    public void save(TranscriptionCheckpoint checkpoint) throws IOException {
+        Properties properties = new Properties();
+        setProperty(properties, "repositoryName", checkpoint.repositoryName);
+        setProperty(properties, "docId", checkpoint.docId);
+        setProperty(properties, "blobPropertyPath",
+                checkpoint.blobPropertyPath);
+        setProperty(properties, "sourceDigest", checkpoint.sourceDigest);
+        setProperty(properties, "stage", checkpoint.stage.name());
+        setProperty(properties, "category", checkpoint.category);
+        if (checkpoint.soundTrack != null) {
+            setProperty(properties, "soundTrack",
+                    checkpoint.soundTrack.getPath());
+        }
+        setProperty(properties, "detectedLanguage",
+                checkpoint.detectedLanguage);
+        setProperty(properties, "language", checkpoint.language);
+        setProperty(properties, "endpointName", checkpoint.endpointName);
+        setProperty(properties, "jobId", checkpoint.jobId);
+        if (checkpoint.rawArchive != null) {
+            setProperty(properties, "rawArchive",
+                    checkpoint.rawArchive.getPath());
+        }
+        File tmp = new File(directory, checkpoint.getKey() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            properties.store(out, checkpoint.toString());
+        } finally {
+            out.close();
+        }
+        File file = new File(directory, checkpoint.getKey() + EXTENSION);
+        if (!tmp.renameTo(file)) {
+            // not atomic on some platforms
+            file.delete();
+            FileUtils.moveFile(tmp, file);
+        }
+    }
+
+    protected static void setProperty(Properties properties, String name,
+            String value) {
+        if (value != null) {
+            properties.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Delete the checkpoint and the files of the store it refers to.
+     */
+    public void remove(TranscriptionCheckpoint checkpoint) {
+        FileUtils.deleteQuietly(new File(directory, checkpoint.getKey()
+                + EXTENSION));
+        deleteOwnFile(checkpoint.soundTrack);
+        deleteOwnFile(checkpoint.rawArchive);
+    }
+
+    protected void deleteOwnFile(File file) {
+        if (file != null && directory.equals(file.getParentFile())) {
+            FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * @return all the checkpoints of the store
+     */
+    public List<TranscriptionCheckpoint> list() {
+        List<TranscriptionCheckpoint> checkpoints = new ArrayList<TranscriptionCheckpoint>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return checkpoints;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            TranscriptionCheckpoint checkpoint = load(name.substring(0,
+                    name.length() - EXTENSION.length()));
+            if (checkpoint != null) {
+                checkpoints.add(checkpoint);
+            }
+        }
+        return checkpoints;
+    }
+}
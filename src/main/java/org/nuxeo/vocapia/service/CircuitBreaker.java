@@ -0,0 +1,94 @@
+package org.nuxeo.vocapia.service;
+
+/**
+ * Service wide circuit breaker for the calls to the Vocapia backend.
+ *
+ * After a number of consecutive transient failures the circuit opens and no
+ * call is allowed until the open duration has elapsed. A single trial call is
+ * then let through: its success closes the circuit, its failure opens it
+ * again.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    protected final int failureThreshold;
+
+    protected final long openDuration;
+
+    protected State state = State.CLOSED;
+
+    protected int consecutiveFailures = 0;
+
+    protected long openedAt = 0;
+
+    protected boolean trialInProgress = false;
+
+    public CircuitBreaker(int failureThreshold, long openDuration) {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * @return true if the caller may call the backend now. The caller must
+     *         then report the outcome with {@link #recordSuccess()} or
+     *         {@link #recordFailure()}.
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialInProgress = true;
+            return true;
+        default: // HALF_OPEN
+            if (trialInProgress) {
+                return false;
+            }
+            trialInProgress = true;
+            return true;
+        }
+    }
+
+    /**
+     * @return true if calls are currently rejected, without reserving the
+     *         trial call of a half-open circuit.
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN
+                && System.currentTimeMillis() - openedAt < openDuration;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Give up a call allowed by {@link #allowRequest()} without reporting any
+     * outcome.
+     */
+    public synchronized void cancelRequest() {
+        trialInProgress = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,207 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+
+/**
+ * Binary storage of the sections of a transcription in a single blob, instead
+ * of one row per section of the trans:sections list.
+ *
+ * The sections are stored in blocks of {@link #BLOCK_SIZE} sections, preceded
+ * by an index of the time span and the position of each block, so that the
+ * sections of a time window are read without decoding the others:
+ *
+ * <pre>
+ * "NXVT" version
+ * sectionCount speakerCount speakerId*
+ * blockCount (minStart maxStop offset)*
+ * (start stop speaker textLength text)*
+ * </pre>
+ *
+ * Timecodes are stored as doubles, the missing ones as NaN, a missing speaker
+ * as -1 and a missing text as a length of -1. Version 1 stored the timecodes
+ * as floats, it is still read.
+ */
+public class CompactTranscription {
+
+    public static final String MIME_TYPE = "application/x-vocapia-transcription";
+
+    public static final String FILENAME = "vocapia-transcription.bin";
+
+    public static final int MAGIC = 0x4E585654; // NXVT
+
+    public static final int VERSION = 2;
+
+    protected static final int FLOAT_VERSION = 1;
+
+    public static final int BLOCK_SIZE = 64;
+
+    public static Blob toBlob(Transcription transcription) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(transcription, out);
+        Blob blob = new ByteArrayBlob(out.toByteArray(), MIME_TYPE);
+        blob.setFilename(FILENAME);
+        return blob;
+    }
+
+    public static void write(Transcription transcription, OutputStream out)
+            throws IOException {
+        int count = transcription.getSectionCount();
+        int blockCount = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        double[] minStarts = new double[blockCount];
+        double[] maxStops = new double[blockCount];
+        int[] offsets = new int[blockCount];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(data);
+        for (int i = 0; i < count; i++) {
+            int block = i / BLOCK_SIZE;
+            double start = transcription.getTimecodeStart(i);
+            double stop = transcription.getTimecodeStop(i);
+            if (i % BLOCK_SIZE == 0) {
+                offsets[block] = dataOut.size();
+                minStarts[block] = Double.POSITIVE_INFINITY;
+                maxStops[block] = Double.NEGATIVE_INFINITY;
+            }
+            // NaN timecodes do not narrow the span
+            if (!(start >= minStarts[block])) {
+                minStarts[block] = Double.isNaN(start) ? Double.NEGATIVE_INFINITY
+                        : start;
+            }
+            if (!(stop <= maxStops[block])) {
+                maxStops[block] = Double.isNaN(stop) ? Double.POSITIVE_INFINITY
+                        : stop;
+            }
+            dataOut.writeDouble(start);
+            dataOut.writeDouble(stop);
+            dataOut.writeInt(transcription.speakers[i]);
+            String text = transcription.getText(i);
+            if (text == null) {
+                dataOut.writeInt(-1);
+            } else {
+                byte[] bytes = text.getBytes("UTF-8");
+                dataOut.writeInt(bytes.length);
+                dataOut.write(bytes);
+            }
+        }
+        dataOut.flush();
+
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeInt(count);
+        header.writeInt(transcription.speakerIds.size());
+        for (String speakerId : transcription.speakerIds) {
+            header.writeUTF(speakerId);
+        }
+        header.writeInt(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            header.writeDouble(minStarts[i]);
+            header.writeDouble(maxStops[i]);
+            header.writeInt(offsets[i]);
+        }
+        data.writeTo(header);
+        header.flush();
+    }
+
+    /**
+     * @return all the sections
+     */
+    public static Transcription read(InputStream in) throws IOException {
+        return read(in, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return the sections overlapping the time window, in seconds, skipping
+     *         the blocks of sections outside of it
+     */
+    public static Transcription read(InputStream in, double from, double to)
+            throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        if (dataIn.readInt() != MAGIC) {
+            throw new IOException("Not a compact transcription");
+        }
+        int version = dataIn.readInt();
+        boolean floats = version == FLOAT_VERSION;
+        if (version != VERSION && !floats) {
+            throw new IOException("Unsupported compact transcription version: "
+                    + version);
+        }
+        int count = dataIn.readInt();
+        int speakerCount = dataIn.readInt();
+        List<String> speakerIds = new ArrayList<String>(speakerCount);
+        for (int i = 0; i < speakerCount; i++) {
+            speakerIds.add(dataIn.readUTF());
+        }
+        int blockCount = dataIn.readInt();
+        double[] minStarts = new double[blockCount];
+        double[] maxStops = new double[blockCount];
+        int[] offsets = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            minStarts[i] = readTimecode(dataIn, floats);
+            maxStops[i] = readTimecode(dataIn, floats);
+            offsets[i] = dataIn.readInt();
+        }
+
+        Transcription transcription = Transcription.emptyTranscription();
+        int position = 0;
+        byte[] buffer = new byte[256];
+        for (int block = 0; block < blockCount; block++) {
+            if (minStarts[block] > to || maxStops[block] < from) {
+                continue;
+            }
+            skipFully(dataIn, offsets[block] - position);
+            position = offsets[block];
+            int end = Math.min(count, (block + 1) * BLOCK_SIZE);
+            for (int i = block * BLOCK_SIZE; i < end; i++) {
+                double start = readTimecode(dataIn, floats);
+                double stop = readTimecode(dataIn, floats);
+                int speaker = dataIn.readInt();
+                int length = dataIn.readInt();
+                String text = null;
+                if (length >= 0) {
+                    if (buffer.length < length) {
+                        buffer = new byte[Math.max(length, 2 * buffer.length)];
+                    }
+                    dataIn.readFully(buffer, 0, length);
+                    text = new String(buffer, 0, length, "UTF-8");
+                }
+                position += (floats ? 16 : 24) + Math.max(0, length);
+                // sections without timecodes are always kept
+                if (start > to || stop < from) {
+                    continue;
+                }
+                transcription.appendSection(start, stop, text,
+                        speaker < 0 ? null : speakerIds.get(speaker));
+            }
+        }
+        return transcription;
+    }
+
+    protected static double readTimecode(DataInputStream in, boolean floats)
+            throws IOException {
+        return floats ? in.readFloat() : in.readDouble();
+    }
+
+    protected static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package org.nuxeo.vocapia.service;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cluster wide limit on the number of concurrent calls to the Vocapia
+ * service, shared by all the Nuxeo nodes through a lease table in the
+ * database.
+ *
+ * The permits table holds one row per permit. A node takes a permit with a
+ * conditional update of a free or expired row and renews the leases it holds
+ * while its calls last, so that the permits of a crashed node come back after
+ * the lease duration. The nodes waiting for a permit advertise their number
+ * of waiting calls in the waiters table: a node already holding its fair
+ * share of the permits leaves the free ones to the other waiting nodes.
+ *
+ * The connections are used outside of any transaction. The leases are dated
+ * with the clock of the database, not with the clocks of the nodes, so that a
+ * skew between the nodes never makes a live lease look expired.
+ */
+public class ConcurrencyLimiter {
+
+    private static final Log log = LogFactory.getLog(ConcurrencyLimiter.class);
+
+    public static final String PERMITS_TABLE = "vocapia_permits";
+
+    public static final String WAITERS_TABLE = "vocapia_waiters";
+
+    protected final DataSource dataSource;
+
+    protected final String nodeId;
+
+    protected final int maxPermits;
+
+    protected final long leaseDuration;
+
+    protected final long pollInterval;
+
+    protected final AtomicInteger waiting = new AtomicInteger();
+
+    protected final Set<Permit> active = Collections.newSetFromMap(new ConcurrentHashMap<Permit, Boolean>());
+
+    /** Query of the current time of the database, depends on its dialect. */
+    protected volatile String currentTimeQuery;
+
+    /**
+     * Lease on a permit, to be given back with {@link #release(Permit)}.
+     */
+    public static class Permit {
+
+        public final int slot;
+
+        protected final String token;
+
+        protected Permit(int slot, String token) {
+            this.slot = slot;
+            this.token = token;
+        }
+    }
+
+    /**
+     * @param nodeId unique identifier of this node in the cluster
+     * @param maxPermits number of concurrent calls allowed on the whole
+     *            cluster
+     * @param leaseDuration in milliseconds, leases are renewed by
+     *            {@link #renewLeases()}
+     * @param pollInterval delay in milliseconds between two attempts to take
+     *            a permit
+     */
+    public ConcurrencyLimiter(DataSource dataSource, String nodeId,
+            int maxPermits, long leaseDuration, long pollInterval) {
+        this.dataSource = dataSource;
+        this.nodeId = nodeId;
+        this.maxPermits = maxPermits;
+        this.leaseDuration = leaseDuration;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Create the tables and the permit rows if missing. The nodes may
+     * initialize concurrently: the first one wins.
+     */
+    public void init() throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            createTableIfMissing(connection, PERMITS_TABLE, "CREATE TABLE "
+                    + PERMITS_TABLE
+                    + " (slot INTEGER NOT NULL PRIMARY KEY,"
+                    + " holder VARCHAR(255), token VARCHAR(64),"
+                    + " expires NUMERIC(19) NOT NULL)");
+            createTableIfMissing(connection, WAITERS_TABLE, "CREATE TABLE "
+                    + WAITERS_TABLE
+                    + " (holder VARCHAR(255) NOT NULL PRIMARY KEY,"
+                    + " waiting INTEGER NOT NULL, seen NUMERIC(19) NOT NULL)");
+            Set<Integer> slots = new HashSet<Integer>();
+            Statement st = connection.createStatement();
+            try {
+                ResultSet rs = st.executeQuery("SELECT slot FROM "
+                        + PERMITS_TABLE);
+                while (rs.next()) {
+                    slots.add(rs.getInt(1));
+                }
+            } finally {
+                st.close();
+            }
+            // rows above the configured limit are simply ignored
+            for (int slot = 0; slot < maxPermits; slot++) {
+                if (slots.contains(slot)) {
+                    continue;
+                }
+                PreparedStatement ps = connection.prepareStatement("INSERT INTO "
+                        + PERMITS_TABLE
+                        + " (slot, holder, token, expires) VALUES (?, NULL, NULL, 0)");
+                try {
+                    ps.setInt(1, slot);
+                    ps.executeUpdate();
+                } catch (SQLException e) {
+                    log.debug("Permit " + slot + " created by another node", e);
+                } finally {
+                    ps.close();
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    protected void createTableIfMissing(Connection connection, String table,
+            String ddl) throws SQLException {
+        Statement st = connection.createStatement();
+        try {
+            st.executeQuery("SELECT COUNT(*) FROM " + table).close();
+            return;
+        } catch (SQLException e) {
+            log.info("Creating table " + table);
+        } finally {
+            st.close();
+        }
+        st = connection.createStatement();
+        try {
+            st.executeUpdate(ddl);
+        } catch (SQLException e) {
+            // created concurrently by another node?
+            Statement check = connection.createStatement();
+            try {
+                check.executeQuery("SELECT COUNT(*) FROM " + table).close();
+            } catch (SQLException e2) {
+                throw e;
+            } finally {
+                check.close();
+            }
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Wait for a permit.
+     *
+     * @param timeout maximum wait in milliseconds
+     * @return the permit or null if none could be taken before the timeout
+     */
+    public Permit acquire(long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        int waitingCount = waiting.incrementAndGet();
+        try {
+            while (true) {
+                Permit permit = tryAcquire(waitingCount);
+                if (permit != null) {
+                    return permit;
+                }
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                Thread.sleep(Math.min(remaining, pollInterval));
+                waitingCount = waiting.get();
+            }
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    protected Permit tryAcquire(int waitingCount) {
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                long now = getDatabaseTime(connection);
+                advertiseWaiting(connection, waitingCount, now);
+                Set<String> contenders = new HashSet<String>();
+                contenders.add(nodeId);
+                boolean othersWaiting = false;
+                PreparedStatement ps = connection.prepareStatement("SELECT holder FROM "
+                        + WAITERS_TABLE + " WHERE waiting > 0 AND seen > ?");
+                try {
+                    ps.setLong(1, now - leaseDuration);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        String holder = rs.getString(1);
+                        othersWaiting |= !nodeId.equals(holder);
+                        contenders.add(holder);
+                    }
+                } finally {
+                    ps.close();
+                }
+                int held = 0;
+                Integer freeSlot = null;
+                ps = connection.prepareStatement("SELECT slot, holder, expires FROM "
+                        + PERMITS_TABLE + " WHERE slot < ?");
+                try {
+                    ps.setInt(1, maxPermits);
+                    ResultSet rs = ps.executeQuery();
+                    while (rs.next()) {
+                        int slot = rs.getInt(1);
+                        String holder = rs.getString(2);
+                        if (holder == null || rs.getLong(3) < now) {
+                            if (freeSlot == null) {
+                                freeSlot = slot;
+                            }
+                            continue;
+                        }
+                        contenders.add(holder);
+                        if (nodeId.equals(holder)) {
+                            held++;
+                        }
+                    }
+                } finally {
+                    ps.close();
+                }
+                if (freeSlot == null
+                        || !mayAcquire(held, maxPermits, contenders.size(),
+                                othersWaiting)) {
+                    return null;
+                }
+                String token = UUID.randomUUID().toString();
+                ps = connection.prepareStatement("UPDATE " + PERMITS_TABLE
+                        + " SET holder = ?, token = ?, expires = ?"
+                        + " WHERE slot = ? AND (holder IS NULL OR expires < ?)");
+                try {
+                    ps.setString(1, nodeId);
+                    ps.setString(2, token);
+                    ps.setLong(3, now + leaseDuration);
+                    ps.setInt(4, freeSlot);
+                    ps.setLong(5, now);
+                    if (ps.executeUpdate() != 1) {
+                        // taken by another node in the meantime
+                        return null;
+                    }
+                } finally {
+                    ps.close();
+                }
+                Permit permit = new Permit(freeSlot, token);
+                active.add(permit);
+                return permit;
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.error("Could not take a Vocapia permit, retrying", e);
+            return null;
+        }
+    }
+
+    /**
+     * A node holding at least its fair share of the permits only takes a
+     * free one if no other node is waiting for it.
+     *
+     * @param contenders number of nodes holding or waiting for a permit,
+     *            including this one
+     */
+    public static boolean mayAcquire(int held, int maxPermits,
+            int contenders, boolean othersWaiting) {
+        if (!othersWaiting) {
+            return true;
+        }
+        int fairShare = (maxPermits + contenders - 1) / Math.max(1, contenders);
+        return held < Math.max(1, fairShare);
+    }
+
+    protected void advertiseWaiting(Connection connection, int waitingCount,
+            long now) throws SQLException {
+        PreparedStatement ps = connection.prepareStatement("UPDATE "
+                + WAITERS_TABLE + " SET waiting = ?, seen = ? WHERE holder = ?");
+        try {
+            ps.setInt(1, waitingCount);
+            ps.setLong(2, now);
+            ps.setString(3, nodeId);
+            if (ps.executeUpdate() == 1) {
+                return;
+            }
+        } finally {
+            ps.close();
+        }
+        ps = connection.prepareStatement("INSERT INTO " + WAITERS_TABLE
+                + " (holder, waiting, seen) VALUES (?, ?, ?)");
+        try {
+            ps.setString(1, nodeId);
+            ps.setInt(2, waitingCount);
+            ps.setLong(3, now);
+            ps.executeUpdate();
+        } finally {
+            ps.close();
+        }
+    }
+
+    public void release(Permit permit) {
+        active.remove(permit);
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                PreparedStatement ps = connection.prepareStatement("UPDATE "
+                        + PERMITS_TABLE
+                        + " SET holder = NULL, token = NULL, expires = 0"
+                        + " WHERE slot = ? AND token = ?");
+                try {
+                    ps.setInt(1, permit.slot);
+                    ps.setString(2, permit.token);
+                    ps.executeUpdate();
+                } finally {
+                    ps.close();
+                }
+                if (waiting.get() == 0) {
+                    advertiseWaiting(connection, 0,
+                            getDatabaseTime(connection));
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            // the lease will expire on its own
+            log.error("Could not release Vocapia permit " + permit.slot, e);
+        }
+    }
+
+    /**
+     * Extend the leases of the permits held by this node. To be called
+     * several times per lease duration.
+     */
+    public void renewLeases() {
+        if (active.isEmpty()) {
+            return;
+        }
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                PreparedStatement ps = connection.prepareStatement("UPDATE "
+                        + PERMITS_TABLE + " SET expires = ?"
+                        + " WHERE slot = ? AND token = ?");
+                try {
+                    long expires = getDatabaseTime(connection) + leaseDuration;
+                    for (Permit permit : active) {
+                        ps.setLong(1, expires);
+                        ps.setInt(2, permit.slot);
+                        ps.setString(3, permit.token);
+                        if (ps.executeUpdate() != 1) {
+                            log.warn("Lease of Vocapia permit " + permit.slot
+                                    + " was lost, the cluster may exceed its limit");
+                        }
+                    }
+                } finally {
+                    ps.close();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.error("Could not renew the Vocapia permit leases", e);
+        }
+    }
+
+    /**
+     * Give back all the permits of this node, on shutdown.
+     */
+    public void releaseAll() {
+        active.clear();
+        try {
+            Connection connection = dataSource.getConnection();
+            try {
+                PreparedStatement ps = connection.prepareStatement("UPDATE "
+                        + PERMITS_TABLE
+                        + " SET holder = NULL, token = NULL, expires = 0"
+                        + " WHERE holder = ?");
+                try {
+                    ps.setString(1, nodeId);
+                    ps.executeUpdate();
+                } finally {
+                    ps.close();
+                }
+                ps = connection.prepareStatement("DELETE FROM "
+                        + WAITERS_TABLE + " WHERE holder = ?");
+                try {
+                    ps.setString(1, nodeId);
+                    ps.executeUpdate();
+                } finally {
+                    ps.close();
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            log.error("Could not release the Vocapia permits of " + nodeId, e);
+        }
+    }
+
+    /**
+     * @return the current time of the database in milliseconds
+     */
+    protected long getDatabaseTime(Connection connection) throws SQLException {
+        if (currentTimeQuery == null) {
+            String product = connection.getMetaData().getDatabaseProductName();
+            if (product != null
+                    && product.toLowerCase(Locale.ENGLISH).contains("oracle")) {
+                currentTimeQuery = "SELECT CURRENT_TIMESTAMP FROM DUAL";
+            } else if (product != null
+                    && product.toLowerCase(Locale.ENGLISH).contains("derby")) {
+                currentTimeQuery = "VALUES CURRENT_TIMESTAMP";
+            } else {
+                currentTimeQuery = "SELECT CURRENT_TIMESTAMP";
+            }
+        }
+        Statement st = connection.createStatement();
+        try {
+            ResultSet rs = st.executeQuery(currentTimeQuery);
+            if (!rs.next()) {
+                throw new SQLException("No current time returned by "
+                        + currentTimeQuery);
+            }
+            return rs.getTimestamp(1).getTime();
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * @return the number of calls of this node waiting for a permit
+     */
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    /**
+     * @return the number of permits held by this node
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return the number of calls waiting for a permit on the whole cluster
+     */
+    public int getClusterWaitingCount() throws SQLException {
+        return queryCount("SELECT SUM(waiting) FROM " + WAITERS_TABLE
+                + " WHERE seen > ?", -leaseDuration);
+    }
+
+    /**
+     * @return the number of permits held on the whole cluster
+     */
+    public int getClusterActiveCount() throws SQLException {
+        return queryCount("SELECT COUNT(*) FROM " + PERMITS_TABLE
+                + " WHERE holder IS NOT NULL AND expires > ?", 0);
+    }
+
+    /**
+     * @param timeOffset added to the current time of the database, the only
+     *            parameter of the query
+     */
+    protected int queryCount(String sql, long timeOffset) throws SQLException {
+        Connection connection = dataSource.getConnection();
+        try {
+            long time = getDatabaseTime(connection) + timeOffset;
+            PreparedStatement ps = connection.prepareStatement(sql);
+            try {
+                ps.setLong(1, time);
+                ResultSet rs = ps.executeQuery();
+                return rs.next() ? rs.getInt(1) : 0;
+            } finally {
+                ps.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    public int getMaxPermits() {
+        return maxPermits;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+}
@@ -0,0 +1,155 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.vocapia.service.xml.RawTranscriptionArchive;
+
+/**
+ * Rebuild the transcription sections of a page of documents from the raw
+ * service payloads stored on them, without calling the service.
+ *
+ * The documents are paged by id: each work schedules the work of the next
+ * page before processing its own, so that the queue holds at most one page
+ * waiting for a thread whatever the size of the repository.
+ */
+public class ResegmentationWork extends AbstractWork {
+
+    private static final Log log = LogFactory.getLog(ResegmentationWork.class);
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_RESEGMENTATION = "speech_transcription_resegmentation";
+
+    protected final String repositoryName;
+
+    /** Id after which the page starts, null for the first page. */
+    protected final String afterId;
+
+    protected final int pageSize;
+
+    protected final double maxSegmentDuration;
+
+    public ResegmentationWork(String repositoryName, String afterId,
+            int pageSize, double maxSegmentDuration) {
+        this.repositoryName = repositoryName;
+        this.afterId = afterId;
+        this.pageSize = pageSize;
+        this.maxSegmentDuration = maxSegmentDuration;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY_SPEECH_TRANSCRIPTION_RESEGMENTATION;
+    }
+
+    @Override
+    public String getTitle() {
+        return String.format(
+                "Speech Transcription re-segmentation of %d documents after %s on %s",
+                pageSize, afterId, repositoryName);
+    }
+
+    @Override
+    public void work() throws Exception {
+        setStatus("resegmentation");
+        new UnrestrictedSessionRunner(repositoryName) {
+            @Override
+            public void run() throws ClientException {
+                DocumentModelList page = session.query(makeQuery(), null,
+                        pageSize, 0, false);
+                if (page.size() == pageSize) {
+                    scheduleNextPage(page.get(page.size() - 1).getId());
+                }
+                int done = 0;
+                for (DocumentModel doc : page) {
+                    if (isSuspending()) {
+                        break;
+                    }
+                    setProgress(new Progress(done++, page.size()));
+                    try {
+                        resegment(session, doc);
+                    } catch (Exception e) {
+                        // do not lose the rest of the page
+                        log.error("Could not re-segment the transcription of "
+                                + doc.getId(), e);
+                    }
+                }
+                session.save();
+            }
+        }.runUnrestricted();
+    }
+
+    /**
+     * Live documents only: the versions are read-only.
+     */
+    protected String makeQuery() {
+        StringBuilder query = new StringBuilder(String.format(
+                "SELECT * FROM Document WHERE ecm:mixinType = '%s'"
+                        + " AND ecm:isProxy = 0 AND ecm:isCheckedInVersion = 0",
+                TranscriptionWork.HAS_SPEECH_TRANSCRIPTION));
+        if (afterId != null) {
+            query.append(String.format(" AND ecm:uuid > '%s'", afterId));
+        }
+        query.append(" ORDER BY ecm:uuid");
+        return query.toString();
+    }
+
+    protected void scheduleNextPage(String lastId) {
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        workManager.schedule(new ResegmentationWork(repositoryName, lastId,
+                pageSize, maxSegmentDuration));
+    }
+
+    protected void resegment(CoreSession session, DocumentModel doc)
+            throws Exception {
+        if (!doc.hasFacet(TranscriptionWork.HAS_SPEECH_TRANSCRIPTION)) {
+            return;
+        }
+        Blob rawArchive = (Blob) doc.getPropertyValue(TranscriptionWork.TRANS_RAW);
+        if (rawArchive == null) {
+            return;
+        }
+        Transcription transcription;
+        InputStream stream = rawArchive.getStream();
+        try {
+            transcription = RawTranscriptionArchive.readTranscription(stream,
+                    maxSegmentDuration);
+        } finally {
+            stream.close();
+        }
+        TranscriptionService service = Framework.getLocalService(TranscriptionService.class);
+        transcription.updateDocument(doc, service != null
+                && service.isCompactSections());
+        session.saveDocument(doc);
+    }
+
+    @Override
+    public int hashCode() {
+        return afterId == null ? 0 : afterId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        ResegmentationWork other = (ResegmentationWork) obj;
+        return repositoryName.equals(other.repositoryName)
+                && (afterId == null ? other.afterId == null
+                        : afterId.equals(other.afterId))
+                && pageSize == other.pageSize
+                && maxSegmentDuration == other.maxSegmentDuration;
+    }
+}
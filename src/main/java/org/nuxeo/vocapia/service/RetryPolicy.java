@@ -0,0 +1,45 @@
+package org.nuxeo.vocapia.service;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for the retries of transient failures.
+ */
+public class RetryPolicy {
+
+    protected final int maxRetries;
+
+    protected final long initialDelay;
+
+    protected final long maxDelay;
+
+    protected final Random random = new Random();
+
+    public RetryPolicy(int maxRetries, long initialDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param retry the number of the retry, starting at 0
+     * @return the delay in milliseconds before the retry: half of it is fixed
+     *         and the other half is random so that concurrent works do not
+     *         hit the backend at the same time.
+     */
+    public long getDelay(int retry) {
+        long delay = initialDelay << Math.min(retry, 30);
+        if (delay <= 0 || delay > maxDelay) {
+            delay = maxDelay;
+        }
+        double jitter;
+        synchronized (random) {
+            jitter = random.nextDouble();
+        }
+        return delay / 2 + (long) (jitter * (delay / 2));
+    }
+}
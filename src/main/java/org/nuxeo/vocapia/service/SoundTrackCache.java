@@ -0,0 +1,234 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Disk cache of the soundtracks extracted from the source media, keyed by the
+ * digest of the source and the extraction profile, so that retries and
+ * re-transcriptions do not run ffmpeg again.
+ *
+ * The total size of the cached files is bounded by a quota: the least
+ * recently used files are deleted first. Files that are being read by a work
+ * are never deleted: callers must {@link #release(String)} each file obtained
+ * by {@link #acquire(String)} or {@link #store(String, File)}.
+ *
+ * The directory may be shared: the cache only lists and deletes the files
+ * whose name starts with {@link #PREFIX}.
+ */
+public class SoundTrackCache {
+
+    private static final Log log = LogFactory.getLog(SoundTrackCache.class);
+
+    public static final String PREFIX = "vocapia-soundtrack-";
+
+    protected static final String EXTENSION = ".mp3";
+
+    protected static final String TMP_EXTENSION = ".tmp";
+
+    protected static class CachedFile {
+
+        protected final File file;
+
+        protected final long length;
+
+        protected int references;
+
+        protected CachedFile(File file) {
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+
+    protected final File directory;
+
+    protected final long maxSize;
+
+    protected final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(
+            16, 0.75f, true);
+
+    protected long size;
+
+    protected long hitCount;
+
+    protected long missCount;
+
+    protected long evictionCount;
+
+    /**
+     * @param maxSize quota in bytes, 0 to disable the cache
+     */
+    public SoundTrackCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public static String makeKey(String digest, String profile) {
+        return (digest + "-" + profile).replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Index the files left by a previous run, the oldest being the first to
+     * be evicted.
+     */
+    public synchronized void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        FileUtils.forceMkdir(directory);
+        File[] existing = directory.listFiles();
+        if (existing == null) {
+            return;
+        }
+        Arrays.sort(existing, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (File file : existing) {
+            String name = file.getName();
+            if (!file.isFile() || !name.startsWith(PREFIX)) {
+                // not ours
+                continue;
+            }
+            if (name.endsWith(TMP_EXTENSION)) {
+                // leftover of an interrupted store
+                FileUtils.deleteQuietly(file);
+                continue;
+            }
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            CachedFile cached = new CachedFile(file);
+            files.put(name.substring(PREFIX.length(), name.length()
+                    - EXTENSION.length()), cached);
+            size += cached.length;
+        }
+        evict();
+    }
+
+    /**
+     * @return the cached soundtrack or null if there is none. The file must
+     *         be released after use.
+     */
+    public synchronized File acquire(String key) {
+        CachedFile cached = files.get(key);
+        if (cached == null || !cached.file.exists()) {
+            if (cached != null) {
+                files.remove(key);
+                size -= cached.length;
+            }
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        cached.references++;
+        return cached.file;
+    }
+
+    /**
+     * Move the extracted soundtrack into the cache. If another work stored
+     * the same soundtrack in the meantime, the extracted file is deleted and
+     * the cached one is returned instead.
+     *
+     * @return the cached soundtrack, to be released after use
+     */
+    public File store(String key, File soundTrack) throws IOException {
+        File target = new File(directory, PREFIX + key + EXTENSION);
+        // move the file outside of the lock: it can be a copy across
+        // filesystems
+        File incoming = File.createTempFile(PREFIX + key, TMP_EXTENSION,
+                directory);
+        FileUtils.deleteQuietly(incoming);
+        FileUtils.moveFile(soundTrack, incoming);
+        synchronized (this) {
+            CachedFile cached = files.get(key);
+            if (cached != null && cached.file.exists()) {
+                FileUtils.deleteQuietly(incoming);
+                cached.references++;
+                return cached.file;
+            }
+            if (cached != null) {
+                files.remove(key);
+                size -= cached.length;
+            }
+            if (!incoming.renameTo(target)) {
+                FileUtils.deleteQuietly(incoming);
+                throw new IOException("Could not store soundtrack " + target);
+            }
+            cached = new CachedFile(target);
+            cached.references++;
+            files.put(key, cached);
+            size += cached.length;
+            evict();
+            return target;
+        }
+    }
+
+    public synchronized void release(String key) {
+        CachedFile cached = files.get(key);
+        if (cached != null && cached.references > 0) {
+            cached.references--;
+        }
+        evict();
+    }
+
+    protected void evict() {
+        Iterator<CachedFile> it = files.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            CachedFile cached = it.next();
+            if (cached.references > 0) {
+                continue;
+            }
+            it.remove();
+            size -= cached.length;
+            evictionCount++;
+            if (!cached.file.delete() && cached.file.exists()) {
+                log.warn("Could not delete cached soundtrack " + cached.file);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (CachedFile cached : files.values()) {
+            FileUtils.deleteQuietly(cached.file);
+        }
+        files.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getFileCount() {
+        return files.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
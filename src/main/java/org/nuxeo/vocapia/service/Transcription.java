@@ -1,15 +1,33 @@
 package org.nuxeo.vocapia.service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
 
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.model.PropertyException;
 
 /**
  * Data Transfer Object to manipulate the extracted transcriptions from the service.
+ *
+ * The sections are stored in columns: parallel arrays of timecodes, offsets
+ * in a single buffer holding the text of all the sections, and indexes in the
+ * list of distinct speaker ids. The sections are only exposed as maps, built
+ * on access, to be saved in the trans:sections property.
  */
 public class Transcription {
 
@@ -20,10 +38,39 @@ public class Transcription {
     public static final String TEXT = "text";
 
     public static final String SPEAKER_ID = "speaker_id";
-    
-    public final StringBuilder text = new StringBuilder();
 
-    protected ArrayList<Map<String, Object>> sections = new ArrayList<Map<String, Object>>();
+    protected static final int INITIAL_CAPACITY = 16;
+
+    public static final int SUMMARY_LENGTH = 1000;
+
+    protected static final String[] KEYS = { TIMECODE_START, TIMECODE_STOP,
+            TEXT, SPEAKER_ID };
+
+    protected int size;
+
+    /** NaN for a missing timecode. */
+    protected double[] starts = new double[INITIAL_CAPACITY];
+
+    protected double[] stops = new double[INITIAL_CAPACITY];
+
+    /**
+     * Offsets of the text of each section in the buffer, -1 for a missing
+     * text. The text of a section is followed by a newline.
+     */
+    protected int[] textStarts = new int[INITIAL_CAPACITY];
+
+    protected int[] textEnds = new int[INITIAL_CAPACITY];
+
+    /** -1 for a missing speaker id. */
+    protected int[] speakers = new int[INITIAL_CAPACITY];
+
+    protected final StringBuilder buffer = new StringBuilder();
+
+    protected final List<String> speakerIds = new ArrayList<String>();
+
+    protected final Map<String, Integer> speakerIndexes = new HashMap<String, Integer>();
+
+    protected final SectionList sections = new SectionList();
 
     public Transcription() {
         // empty transcriptions for incremental building from service outcome
@@ -31,47 +78,390 @@ public class Transcription {
 
     public Transcription appendSection(double timecodeStart, double timecodeStop,
             String text, String speakerId) {
-        Map<String, Object> section = new HashMap<String, Object>();
-        section.put(TIMECODE_START, Double.valueOf(timecodeStart));
-        section.put(TIMECODE_STOP, Double.valueOf(timecodeStop));
-        section.put(TEXT, text);
-        section.put(SPEAKER_ID, speakerId);
-        sections.add(section);
-        this.text.append(text);
-        this.text.append("\n");
+        if (size == starts.length) {
+            grow();
+        }
+        starts[size] = timecodeStart;
+        stops[size] = timecodeStop;
+        if (text == null) {
+            textStarts[size] = -1;
+            textEnds[size] = -1;
+        } else {
+            textStarts[size] = buffer.length();
+            buffer.append(text);
+            textEnds[size] = buffer.length();
+            buffer.append('\n');
+        }
+        speakers[size] = indexOfSpeaker(speakerId);
+        size++;
+        return this;
+    }
+
+    /**
+     * Start a section whose text is appended with
+     * {@link #appendText(CharSequence, int, int)} until
+     * {@link #closeSection(double)}, without building its string.
+     */
+    public Transcription openSection(double timecodeStart, String speakerId) {
+        if (size == starts.length) {
+            grow();
+        }
+        starts[size] = timecodeStart;
+        textStarts[size] = buffer.length();
+        speakers[size] = indexOfSpeaker(speakerId);
         return this;
     }
 
-    public Transcription(ArrayList<Map<String, Object>> sections) {
-        this.sections.addAll(sections);
+    public Transcription appendText(CharSequence text, int start, int end) {
+        buffer.append(text, start, end);
+        return this;
     }
 
-    public ArrayList<Map<String, Object>> getSections() {
+    public Transcription appendText(char c) {
+        buffer.append(c);
+        return this;
+    }
+
+    /**
+     * @return true if no text has been appended to the open section yet
+     */
+    public boolean isSectionTextEmpty() {
+        return buffer.length() == textStarts[size];
+    }
+
+    /**
+     * End the open section, dropping the trailing whitespace of its text.
+     */
+    public Transcription closeSection(double timecodeStop) {
+        int end = buffer.length();
+        while (end > textStarts[size] && buffer.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        buffer.setLength(end);
+        stops[size] = timecodeStop;
+        textEnds[size] = end;
+        buffer.append('\n');
+        size++;
+        return this;
+    }
+
+    protected void grow() {
+        int capacity = starts.length * 2;
+        starts = Arrays.copyOf(starts, capacity);
+        stops = Arrays.copyOf(stops, capacity);
+        textStarts = Arrays.copyOf(textStarts, capacity);
+        textEnds = Arrays.copyOf(textEnds, capacity);
+        speakers = Arrays.copyOf(speakers, capacity);
+    }
+
+    protected int indexOfSpeaker(String speakerId) {
+        if (speakerId == null) {
+            return -1;
+        }
+        Integer index = speakerIndexes.get(speakerId);
+        if (index == null) {
+            index = Integer.valueOf(speakerIds.size());
+            speakerIds.add(speakerId);
+            speakerIndexes.put(speakerId, index);
+        }
+        return index.intValue();
+    }
+
+    public Transcription(List<Map<String, Object>> sections) {
+        if (sections == null) {
+            return;
+        }
+        for (Map<String, Object> section : sections) {
+            appendSection(toDouble(section.get(TIMECODE_START)),
+                    toDouble(section.get(TIMECODE_STOP)),
+                    (String) section.get(TEXT),
+                    (String) section.get(SPEAKER_ID));
+        }
+    }
+
+    protected static double toDouble(Object value) {
+        return value == null ? Double.NaN : ((Number) value).doubleValue();
+    }
+
+    /**
+     * @return a read-only view of the sections, as maps of
+     *         {@link #TIMECODE_START}, {@link #TIMECODE_STOP}, {@link #TEXT}
+     *         and {@link #SPEAKER_ID}, serialized as a list of hash maps
+     */
+    public List<Map<String, Object>> getSections() {
         return sections;
     }
 
+    public int getSectionCount() {
+        return size;
+    }
+
+    /**
+     * @return the approximate heap footprint in bytes: the text buffer and
+     *         the columns of the sections
+     */
+    public long getEstimatedSize() {
+        long estimate = 2L * buffer.capacity() + 28L * starts.length;
+        for (String speakerId : speakerIds) {
+            estimate += 64 + 2L * speakerId.length();
+        }
+        return estimate;
+    }
+
+    public double getTimecodeStart(int index) {
+        checkIndex(index);
+        return starts[index];
+    }
+
+    public double getTimecodeStop(int index) {
+        checkIndex(index);
+        return stops[index];
+    }
+
+    public String getText(int index) {
+        checkIndex(index);
+        int start = textStarts[index];
+        return start < 0 ? null : buffer.substring(start, textEnds[index]);
+    }
+
+    public String getSpeakerId(int index) {
+        checkIndex(index);
+        int speaker = speakers[index];
+        return speaker < 0 ? null : speakerIds.get(speaker);
+    }
+
+    protected void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + size);
+        }
+    }
+
     public static Transcription emptyTranscription() {
         return new Transcription();
     }
 
     public static Transcription fromSections(
-            ArrayList<Map<String, Object>> sections) {
+            List<Map<String, Object>> sections) {
         return new Transcription(sections);
     }
 
+    /**
+     * Read the sections from the compact blob if any, else from the
+     * trans:sections list.
+     */
     public static Transcription fromTranscribedDocument(DocumentModel doc)
             throws PropertyException, ClientException {
+        return fromTranscribedDocument(doc, Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @return the sections overlapping the time window, in seconds
+     */
+    public static Transcription fromTranscribedDocument(DocumentModel doc,
+            double from, double to) throws PropertyException,
+            ClientException {
+        Blob blob = (Blob) doc.getPropertyValue(TranscriptionWork.TRANS_SECTIONS_BLOB);
+        if (blob != null) {
+            try {
+                InputStream in = blob.getStream();
+                try {
+                    return CompactTranscription.read(in, from, to);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                throw new ClientException(
+                        "Could not read the transcription of "
+                                + doc.getId(), e);
+            }
+        }
         @SuppressWarnings("unchecked")
-        ArrayList<Map<String, Object>> sections = (ArrayList<Map<String, Object>>) doc.getPropertyValue(TranscriptionWork.TRANS_SECTIONS);
-        return new Transcription(sections);
+        List<Map<String, Object>> sections = (List<Map<String, Object>>) doc.getPropertyValue(TranscriptionWork.TRANS_SECTIONS);
+        Transcription transcription = new Transcription();
+        if (sections != null) {
+            for (Map<String, Object> section : sections) {
+                double start = toDouble(section.get(TIMECODE_START));
+                double stop = toDouble(section.get(TIMECODE_STOP));
+                if (start > to || stop < from) {
+                    continue;
+                }
+                transcription.appendSection(start, stop,
+                        (String) section.get(TEXT),
+                        (String) section.get(SPEAKER_ID));
+            }
+        }
+        return transcription;
     }
 
     public void updateDocument(DocumentModel doc) throws PropertyException,
             ClientException {
-        doc.setPropertyValue(TranscriptionWork.TRANS_SECTIONS, sections);
+        updateDocument(doc, false);
+    }
+
+    /**
+     * @param compact true to store the sections in a single blob instead of
+     *            one item of the trans:sections list per section, along with
+     *            the whole text in trans:text for the full-text search
+     */
+    public void updateDocument(DocumentModel doc, boolean compact)
+            throws PropertyException, ClientException {
+        if (compact) {
+            try {
+                doc.setPropertyValue(TranscriptionWork.TRANS_SECTIONS_BLOB,
+                        CompactTranscription.toBlob(this));
+            } catch (IOException e) {
+                throw new ClientException(
+                        "Could not write the transcription of "
+                                + doc.getId(), e);
+            }
+            // drop the rows of a previous transcription
+            doc.setPropertyValue(TranscriptionWork.TRANS_SECTIONS,
+                    new ArrayList<Map<String, Object>>());
+            // the blob is opaque to the full-text extractor
+            doc.setPropertyValue(TranscriptionWork.TRANS_TEXT, getText());
+        } else {
+            doc.setPropertyValue(TranscriptionWork.TRANS_SECTIONS, sections);
+            doc.setPropertyValue(TranscriptionWork.TRANS_SECTIONS_BLOB, null);
+            doc.setPropertyValue(TranscriptionWork.TRANS_TEXT, null);
+        }
+        doc.setPropertyValue(TranscriptionWork.TRANS_SECTION_COUNT,
+                Long.valueOf(size));
+        doc.setPropertyValue(TranscriptionWork.TRANS_SUMMARY,
+                getSummary(SUMMARY_LENGTH));
+    }
+
+    /**
+     * @return the beginning of the text, cut between words
+     */
+    public String getSummary(int maxLength) {
+        String text = getText();
+        if (text.length() <= maxLength) {
+            return text;
+        }
+        int end = maxLength;
+        while (end > 0 && !Character.isWhitespace(text.charAt(end))) {
+            end--;
+        }
+        if (end == 0) {
+            end = maxLength;
+        }
+        return text.substring(0, end).trim() + "...";
     }
 
     public String getText() {
-        return text.toString().trim();
+        return buffer.toString().trim();
+    }
+
+    protected class SectionList extends AbstractList<Map<String, Object>>
+            implements RandomAccess, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Map<String, Object> get(int index) {
+            checkIndex(index);
+            return new Section(index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Serialize a detached copy rather than the whole transcription.
+         */
+        protected Object writeReplace() {
+            ArrayList<Map<String, Object>> copy = new ArrayList<Map<String, Object>>(
+                    size);
+            for (int i = 0; i < size; i++) {
+                copy.add(new HashMap<String, Object>(get(i)));
+            }
+            return copy;
+        }
+    }
+
+    protected class Section extends AbstractMap<String, Object> implements
+            Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final int index;
+
+        protected Section(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public Object get(Object key) {
+            if (TIMECODE_START.equals(key)) {
+                return toValue(starts[index]);
+            } else if (TIMECODE_STOP.equals(key)) {
+                return toValue(stops[index]);
+            } else if (TEXT.equals(key)) {
+                return getText(index);
+            } else if (SPEAKER_ID.equals(key)) {
+                return getSpeakerId(index);
+            }
+            return null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return Arrays.asList(KEYS).contains(key);
+        }
+
+        @Override
+        public int size() {
+            return KEYS.length;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    return new Iterator<Map.Entry<String, Object>>() {
+
+                        protected int next;
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < KEYS.length;
+                        }
+
+                        @Override
+                        public Map.Entry<String, Object> next() {
+                            if (next >= KEYS.length) {
+                                throw new NoSuchElementException();
+                            }
+                            String key = KEYS[next++];
+                            return new SimpleImmutableEntry<String, Object>(
+                                    key, Section.this.get(key));
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return KEYS.length;
+                }
+            };
+        }
+
+        protected Object writeReplace() {
+            return new HashMap<String, Object>(this);
+        }
+    }
+
+    protected static Double toValue(double timecode) {
+        return Double.isNaN(timecode) ? null : Double.valueOf(timecode);
     }
 }
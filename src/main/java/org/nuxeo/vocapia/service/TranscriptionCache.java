@@ -0,0 +1,142 @@
+package org.nuxeo.vocapia.service;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of transcription results keyed by the digest of the
+ * source media, the language and the transcription model, so that identical
+ * content ingested several times is only sent once to the service.
+ *
+ * The cache is bounded both by its number of entries and by the estimated
+ * heap footprint of the cached transcriptions, the least recently used
+ * entries being evicted first. The cache is local to the node: on a miss the
+ * transcriptions saved by the other nodes are found in the repository by
+ * trans:source_digest.
+ */
+public class TranscriptionCache {
+
+    /** Language part of the key when the language had to be detected. */
+    public static final String AUTO_LANGUAGE = "auto";
+
+    /**
+     * A cached result. The transcription must not be modified once cached.
+     */
+    public static class Entry {
+
+        public final String detectedLanguage;
+
+        public final Transcription transcription;
+
+        public final long estimatedSize;
+
+        public Entry(String detectedLanguage, Transcription transcription) {
+            this.detectedLanguage = detectedLanguage;
+            this.transcription = transcription;
+            estimatedSize = transcription.getEstimatedSize();
+        }
+    }
+
+    protected final int maxEntries;
+
+    protected final long maxSize;
+
+    protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    /**
+     * Sum of the estimated sizes of the entries, an entry cached under
+     * several keys being counted for each of them.
+     */
+    protected long totalSize;
+
+    protected long hitCount;
+
+    protected long missCount;
+
+    protected long evictionCount;
+
+    public TranscriptionCache(int maxEntries) {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSize maximum estimated heap footprint of the cached
+     *            transcriptions, in bytes
+     */
+    public TranscriptionCache(int maxEntries, long maxSize) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param digest digest of the source media
+     * @param language short language code or {@link #AUTO_LANGUAGE}
+     * @param model transcription model or null if the language is to be
+     *            detected
+     */
+    public static String makeKey(String digest, String language, String model) {
+        return digest + "/" + language + "/" + (model == null ? "" : model);
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return entry;
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        if (!isEnabled() || entry.estimatedSize > maxSize) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            totalSize -= previous.estimatedSize;
+        }
+        totalSize += entry.estimatedSize;
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxEntries || totalSize > maxSize) {
+            totalSize -= it.next().estimatedSize;
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalSize = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated heap footprint of the cached transcriptions, in
+     *         bytes
+     */
+    public synchronized long getEstimatedSize() {
+        return totalSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+}
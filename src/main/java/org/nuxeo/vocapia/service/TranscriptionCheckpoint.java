@@ -0,0 +1,69 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.File;
+
+/**
+ * Progress of a transcription persisted between its stages, so that a work
+ * interrupted by a shutdown resumes from the last completed stage instead of
+ * starting over.
+ */
+public class TranscriptionCheckpoint {
+
+    /**
+     * Completed stages, in processing order.
+     */
+    public enum Stage {
+        STARTED, EXTRACTED, LANGUAGE_DETECTED, SUBMITTED, TRANSCRIBED
+    }
+
+    public final String repositoryName;
+
+    public final String docId;
+
+    public final String blobPropertyPath;
+
+    public final String sourceDigest;
+
+    public Stage stage = Stage.STARTED;
+
+    /** Category of the work, hence its queue. */
+    public String category;
+
+    /** Extracted soundtrack, null if kept by the soundtrack cache. */
+    public File soundTrack;
+
+    public String detectedLanguage;
+
+    /** Language of the transcription, once submitted or transcribed. */
+    public String language;
+
+    public String endpointName;
+
+    public String jobId;
+
+    /** Archive of the raw payloads of the complete transcription. */
+    public File rawArchive;
+
+    public TranscriptionCheckpoint(String repositoryName, String docId,
+            String blobPropertyPath, String sourceDigest) {
+        this.repositoryName = repositoryName;
+        this.docId = docId;
+        this.blobPropertyPath = blobPropertyPath;
+        this.sourceDigest = sourceDigest;
+    }
+
+    public String getKey() {
+        return CheckpointStore.makeKey(repositoryName, docId,
+                blobPropertyPath);
+    }
+
+    public boolean isAtLeast(Stage other) {
+        return stage.compareTo(other) >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TranscriptionCheckpoint(%s:%s:%s, %s)",
+                repositoryName, docId, blobPropertyPath, stage);
+    }
+}
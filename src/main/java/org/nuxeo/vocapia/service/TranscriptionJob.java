@@ -0,0 +1,62 @@
+package org.nuxeo.vocapia.service;
+
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.vocapia.service.ConcurrencyLimiter.Permit;
+
+/**
+ * Handle on a transcription submitted to the service in asynchronous mode and
+ * whose result has not been fetched yet.
+ */
+public class TranscriptionJob {
+
+    public final DocumentLocation docLoc;
+
+    public final String blobPropertyPath;
+
+    public final String endpointName;
+
+    public final String jobId;
+
+    public final String detectedLanguage;
+
+    public final String language;
+
+    public final String sourceDigest;
+
+    public final long submissionTime;
+
+    /**
+     * Permit taken to submit the job, held until its result is fetched so
+     * that the remote decodes count against the limit of concurrent calls.
+     * Null if the calls are not limited or if the job was resumed after a
+     * restart, the lease of its permit being lost.
+     */
+    protected volatile Permit permit;
+
+    public TranscriptionJob(DocumentLocation docLoc, String blobPropertyPath,
+            String endpointName, String jobId, String detectedLanguage,
+            String language, String sourceDigest) {
+        this.docLoc = docLoc;
+        this.blobPropertyPath = blobPropertyPath;
+        this.endpointName = endpointName;
+        this.jobId = jobId;
+        this.detectedLanguage = detectedLanguage;
+        this.language = language;
+        this.sourceDigest = sourceDigest;
+        this.submissionTime = System.currentTimeMillis();
+    }
+
+    public Permit getPermit() {
+        return permit;
+    }
+
+    public void setPermit(Permit permit) {
+        this.permit = permit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TranscriptionJob(%s@%s, %s, %s)", jobId,
+                endpointName, docLoc, blobPropertyPath);
+    }
+}
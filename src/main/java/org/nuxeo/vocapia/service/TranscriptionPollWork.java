@@ -0,0 +1,129 @@
+package org.nuxeo.vocapia.service;
+
+import static org.nuxeo.ecm.core.work.api.Work.State.FAILED;
+
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.TranscriptionBuilder;
+
+/**
+ * Lightweight work that checks whether a transcription job submitted in
+ * asynchronous mode is complete and if so saves its results on the document.
+ *
+ * The work does not wait for the remote processing: it is scheduled
+ * periodically by the {@link TranscriptionService} for each pending job.
+ */
+public class TranscriptionPollWork extends TranscriptionWork {
+
+    private static final Log log = LogFactory.getLog(TranscriptionPollWork.class);
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_POLL = "speech_transcription_poll";
+
+    protected final TranscriptionJob job;
+
+    public TranscriptionPollWork(TranscriptionJob job, VocapiaClient client,
+            Map<String, String> shortToLongLangCodes,
+            Map<String, String> longToShortLangCodes) {
+        super(job.docLoc, job.blobPropertyPath, client, shortToLongLangCodes,
+                longToShortLangCodes);
+        this.job = job;
+        this.mediaDigest = job.sourceDigest;
+    }
+
+    /**
+     * Jobs waiting for their result are tracked by the service itself.
+     */
+    @Override
+    protected TranscriptionStatusRegistry getStatusRegistry() {
+        return null;
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY_SPEECH_TRANSCRIPTION_POLL;
+    }
+
+    @Override
+    public String getTitle() {
+        return String.format("Speech Transcription polling for: %s:%s:%s",
+                docLoc.getServerName(), docLoc.getDocRef(), blobPropertyPath);
+    }
+
+    @Override
+    public void work() throws Exception {
+        setProgress(Progress.PROGRESS_INDETERMINATE);
+        setStatus("speech_transcription");
+
+        // Do not hold a transaction during the remote call
+        commitOrRollbackTransaction();
+
+        TranscriptionService service = getTranscriptionService();
+        CircuitBreaker breaker = service.getCircuitBreaker();
+        if (!breaker.allowRequest()) {
+            // backend down: will be polled again later
+            return;
+        }
+        TranscriptionBuilder builder = new TranscriptionBuilder();
+        boolean complete;
+        try {
+            complete = fetchJobResult(job, builder);
+            breaker.recordSuccess();
+        } catch (VocapiaServiceException e) {
+            if (e.isRetryable()) {
+                breaker.recordFailure();
+                log.warn(String.format(
+                        "Transient failure while polling %s, will retry: %s",
+                        job, e.getMessage()));
+                return;
+            }
+            breaker.recordSuccess();
+            log.error("Transcription job failed: " + job, e);
+            service.unregisterJob(job);
+            state = FAILED;
+            return;
+        } catch (RuntimeException e) {
+            breaker.cancelRequest();
+            log.error("Transcription job failed: " + job, e);
+            service.unregisterJob(job);
+            state = FAILED;
+            return;
+        }
+        if (!complete || isSuspending()) {
+            // will be polled again later
+            deleteRawParts();
+            return;
+        }
+        startTransaction();
+        setStatus("saving_results");
+        Transcription transcription = builder.getTranscription();
+        Blob rawArchive = makeRawArchive();
+        deleteRawParts();
+        try {
+            saveResults(job.detectedLanguage, transcription, rawArchive);
+        } finally {
+            if (rawArchive != null) {
+                FileUtils.deleteQuietly(getBackingFile(rawArchive));
+            }
+        }
+        cacheResults(job.sourceDigest, job.language, job.detectedLanguage,
+                transcription);
+        service.unregisterJob(job);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + job.jobId.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj)) {
+            return false;
+        }
+        return job.jobId.equals(((TranscriptionPollWork) obj).job.jobId);
+    }
+}
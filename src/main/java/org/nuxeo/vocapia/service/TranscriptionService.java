@@ -4,6 +4,10 @@
 
 package org.nuxeo.vocapia.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
@@ -11,26 +15,61 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.naming.NamingException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.nuxeo.common.Environment;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentLocation;
-import org.nuxeo.ecm.core.work.api.Work;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentRef;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
+import org.nuxeo.ecm.core.api.impl.DocumentLocationImpl;
 import org.nuxeo.ecm.core.work.api.Work.State;
 import org.nuxeo.ecm.core.work.api.WorkManager;
 import org.nuxeo.ecm.core.work.api.WorkManager.Scheduling;
+import org.nuxeo.runtime.api.DataSourceHelper;
 import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
 import org.nuxeo.runtime.model.DefaultComponent;
+import org.nuxeo.vocapia.service.TranscriptionWork.PipelineStage;
 
 /**
  * Schedule the transcription of video and audio files and monitor progress. As
@@ -39,63 +78,864 @@ import org.nuxeo.runtime.model.DefaultComponent;
  */
 public class TranscriptionService extends DefaultComponent {
 
+    private static final Log log = LogFactory.getLog(TranscriptionService.class);
+
     protected static final String MEDIA_BLOB_PATH = "file:content";
 
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 30 * 1000;
+
+    // long media can keep the server busy for a long time before it answers
+    public static final int DEFAULT_SOCKET_TIMEOUT = 2 * 60 * 60 * 1000;
+
+    public static final int DEFAULT_KEEP_ALIVE = 60 * 1000;
+
+    public static final int DEFAULT_IDLE_TIMEOUT = 30 * 1000;
+
+    public static final int DEFAULT_ASYNC_POLL_INTERVAL = 30 * 1000;
+
+    public static final String DEFAULT_ASYNC_SUBMIT_PARAMETERS = "async=1";
+
+    public static final String DEFAULT_ASYNC_RESULT_METHOD = "get_result";
+
+    public static final String ENDPOINTS_XP = "endpoints";
+
+    public static final int DEFAULT_ENDPOINT_MAX_FAILURES = 3;
+
+    public static final int DEFAULT_ENDPOINT_QUARANTINE = 60 * 1000;
+
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 30 * 1000;
+
+    public static final String DEFAULT_EXTRACTION_CONVERTER = "extractSoundAsMp3";
+
+    public static final String SPEECH_EXTRACTION_CONVERTER = "extractSpeechAsMp3";
+
+    public static final String REMUX_AAC_CONVERTER = "remuxAudioAsAac";
+
+    public static final String EXTRACTION_PROFILE_SPEECH = "speech";
+
+    public static final String EXTRACTION_PROFILE_DEFAULT = "default";
+
+    public static final int DEFAULT_CHUNK_DURATION = 10 * 60 * 1000;
+
+    public static final int DEFAULT_CHUNK_CONCURRENCY = 4;
+
+    public static final int DEFAULT_LID_EXCERPT_COUNT = 3;
+
+    public static final int DEFAULT_LID_EXCERPT_DURATION = 30 * 1000;
+
+    public static final int DEFAULT_RESULT_CACHE_SIZE = 200;
+
+    /** In megabytes. */
+    public static final int DEFAULT_RESULT_CACHE_MAX_SIZE = 32;
+
+    public static final int DEFAULT_SOUNDTRACK_CACHE_SIZE = 1024;
+
+    public static final String SOUNDTRACK_CACHE_DIRECTORY = "nuxeo-vocapia-soundtracks";
+
+    public static final String CHECKPOINT_DIRECTORY = "vocapia-checkpoints";
+
+    public static final int RESEGMENTATION_BATCH_SIZE = 50;
+
+    public static final int DEFAULT_LONG_MEDIA_DURATION = 10 * 60 * 1000;
+
+    public static final int DEFAULT_TRIGGER_DEBOUNCE = 10 * 1000;
+
+    // rough bitrates to estimate the duration of media without metadata
+    public static final int AUDIO_BITRATE_ESTIMATE = 128 * 1000;
+
+    public static final int VIDEO_BITRATE_ESTIMATE = 1000 * 1000;
+
+    protected static final String VIDEO_DURATION = "vid:info/duration";
+
+    public static final int BACKFILL_PAGE_SIZE = 100;
+
+    public static final int DEFAULT_BACKFILL_RATE = 60;
+
+    public static final int DEFAULT_BACKFILL_MAX_QUEUED = 100;
+
+    // no cluster wide limit on concurrent calls by default
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 0;
+
+    public static final String DEFAULT_PERMIT_DATASOURCE = "nuxeo";
+
+    public static final int DEFAULT_PERMIT_LEASE_DURATION = 5 * 60 * 1000;
+
+    public static final int DEFAULT_PERMIT_POLL_INTERVAL = 1000;
+
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final int DEFAULT_RETRY_INITIAL_DELAY = 2 * 1000;
+
+    public static final int DEFAULT_RETRY_MAX_DELAY = 60 * 1000;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+
+    public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 60 * 1000;
+
     protected HttpClient httpClient;
 
-    protected URI serviceUrl;
+    protected final Map<String, VocapiaEndpointDescriptor> endpointDescriptors = new LinkedHashMap<String, VocapiaEndpointDescriptor>();
+
+    protected volatile VocapiaClient client;
+
+    protected PoolingClientConnectionManager connectionManager;
+
+    protected String extractionProfile;
+
+    protected final AtomicLong sourceBytesNotUploaded = new AtomicLong();
+
+    protected TranscriptionCache resultCache = new TranscriptionCache(0);
+
+    protected SoundTrackCache soundTrackCache = new SoundTrackCache(null, 0);
+
+    protected boolean rawStorageEnabled;
+
+    protected boolean compactSections;
+
+    protected CheckpointStore checkpointStore;
+
+    protected long longMediaDuration;
+
+    protected long triggerDebounce;
+
+    protected boolean pipelineMode;
+
+    protected boolean streamingExtraction;
 
-    protected String username;
+    protected final Map<DocumentLocation, ScheduledFuture<?>> pendingTriggers = new HashMap<DocumentLocation, ScheduledFuture<?>>();
 
-    protected String password;
+    protected final AtomicLong coalescedTriggers = new AtomicLong();
+
+    protected final AtomicLong skippedTriggers = new AtomicLong();
+
+    protected RetryPolicy retryPolicy;
+
+    protected CircuitBreaker circuitBreaker;
+
+    protected volatile ConcurrencyLimiter concurrencyLimiter;
+
+    protected ScheduledExecutorService scheduler;
+
+    protected boolean asyncMode;
+
+    protected String asyncSubmitParameters;
+
+    protected String asyncResultMethod;
+
+    protected boolean chunkedMode;
+
+    protected long chunkDuration;
+
+    protected ExecutorService chunkExecutor;
+
+    protected int lidExcerptCount;
+
+    protected long lidExcerptDuration;
+
+    protected final Map<String, Backfill> backfills = new ConcurrentHashMap<String, Backfill>();
+
+    protected final TranscriptionStatusRegistry statusRegistry = new TranscriptionStatusRegistry();
+
+    protected final Map<DocumentLocation, TranscriptionJob> pendingJobs = new ConcurrentHashMap<DocumentLocation, TranscriptionJob>();
+
+    /**
+     * Jobs resumed after a restart that still have to take a permit, their
+     * lease having been lost.
+     */
+    protected final Queue<TranscriptionJob> jobsWithoutPermit = new ConcurrentLinkedQueue<TranscriptionJob>();
 
     protected Map<String, String> shortToLongLangCodes = new LinkedHashMap<String, String>();
 
     protected final Map<String, String> longToShortLangCodes = new LinkedHashMap<String, String>();
 
-    protected void initHttpClient(URI serviceUrl)
-            throws KeyManagementException, UnrecoverableKeyException,
-            NoSuchAlgorithmException, KeyStoreException {
+    protected void initHttpClient() throws KeyManagementException,
+            UnrecoverableKeyException, NoSuchAlgorithmException,
+            KeyStoreException {
 
-        // Create and initialize a scheme registry
+        // Create and initialize a scheme registry: the endpoints can use
+        // both schemes, explicit ports in their URLs take precedence over the
+        // default ones.
         SchemeRegistry schemeRegistry = new SchemeRegistry();
-        if ("https".equals(serviceUrl.getScheme())) {
-            // Trust self signed certificates
-            TrustStrategy blindTrust = new TrustStrategy() {
-                @Override
-                public boolean isTrusted(X509Certificate[] chain,
-                        String authType) throws CertificateException {
-                    return true;
+        // Trust self signed certificates
+        TrustStrategy blindTrust = new TrustStrategy() {
+            @Override
+            public boolean isTrusted(X509Certificate[] chain, String authType)
+                    throws CertificateException {
+                return true;
+            }
+        };
+        SSLSocketFactory sslsf = new SSLSocketFactory(blindTrust,
+                SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        schemeRegistry.register(new Scheme("https", 443, sslsf));
+        schemeRegistry.register(new Scheme("http", 80,
+                PlainSocketFactory.getSocketFactory()));
+
+        // Create an HttpClient with a pooling connection manager. The pool
+        // must be large enough to serve all the speech_transcription threads
+        // concurrently.
+        connectionManager = new PoolingClientConnectionManager(schemeRegistry);
+        connectionManager.setMaxTotal(getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HTTP_MAX_CONNECTIONS",
+                DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HTTP_MAX_CONNECTIONS_PER_ROUTE",
+                DEFAULT_MAX_CONNECTIONS));
+
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params,
+                getIntFromEnvOrProperty("NUXEO_VOCAPIA_HTTP_CONNECT_TIMEOUT",
+                        DEFAULT_CONNECT_TIMEOUT));
+        HttpConnectionParams.setSoTimeout(params, getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HTTP_SOCKET_TIMEOUT", DEFAULT_SOCKET_TIMEOUT));
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager,
+                params);
+
+        // Do not keep idle connections open longer than configured, even if
+        // the server does not send any keep-alive header.
+        final long keepAlive = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HTTP_KEEP_ALIVE", DEFAULT_KEEP_ALIVE);
+        client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response,
+                    HttpContext context) {
+                long duration = super.getKeepAliveDuration(response, context);
+                if (duration < 0 || duration > keepAlive) {
+                    return keepAlive;
+                }
+                return duration;
+            }
+        });
+        httpClient = client;
+
+        // Periodically evict expired and idle connections from the pool
+        final long idleTimeout = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HTTP_IDLE_TIMEOUT", DEFAULT_IDLE_TIMEOUT);
+        final PoolingClientConnectionManager cm = connectionManager;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                cm.closeExpiredConnections();
+                cm.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * In asynchronous mode the transcription works only submit the media to
+     * the service and the results are fetched by lightweight
+     * {@link TranscriptionPollWork}s scheduled at regular intervals.
+     */
+    protected void initAsyncMode() {
+        asyncMode = Boolean.parseBoolean(getFromEnvOrProperty("NUXEO_VOCAPIA_ASYNC_MODE"));
+        if (!asyncMode) {
+            return;
+        }
+        asyncSubmitParameters = getFromEnvOrProperty("NUXEO_VOCAPIA_ASYNC_SUBMIT_PARAMETERS");
+        if (asyncSubmitParameters == null) {
+            asyncSubmitParameters = DEFAULT_ASYNC_SUBMIT_PARAMETERS;
+        }
+        asyncResultMethod = getFromEnvOrProperty("NUXEO_VOCAPIA_ASYNC_RESULT_METHOD");
+        if (asyncResultMethod == null || asyncResultMethod.isEmpty()) {
+            asyncResultMethod = DEFAULT_ASYNC_RESULT_METHOD;
+        }
+        long pollInterval = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_ASYNC_POLL_INTERVAL",
+                DEFAULT_ASYNC_POLL_INTERVAL);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    schedulePollWorks();
+                } catch (RuntimeException e) {
+                    log.error("Failed to schedule transcription polling", e);
                 }
-            };
-            SSLSocketFactory sslsf = new SSLSocketFactory(blindTrust,
-                    SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
-            schemeRegistry.register(new Scheme(serviceUrl.getScheme(),
-                    serviceUrl.getPort(), sslsf));
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * In chunked mode long soundtracks are split at silence boundaries and
+     * the chunks are transcribed concurrently. The number of concurrent chunk
+     * transcriptions is bounded for the whole service.
+     */
+    protected void initChunkedMode() {
+        chunkedMode = Boolean.parseBoolean(getFromEnvOrProperty("NUXEO_VOCAPIA_CHUNKED_MODE"));
+        if (!chunkedMode) {
+            return;
+        }
+        chunkDuration = getIntFromEnvOrProperty("NUXEO_VOCAPIA_CHUNK_DURATION",
+                DEFAULT_CHUNK_DURATION);
+        int concurrency = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_CHUNK_CONCURRENCY", DEFAULT_CHUNK_CONCURRENCY);
+        chunkExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Nuxeo-Vocapia-Chunk");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * The extracted soundtracks are kept on disk across restarts, up to a
+     * quota in megabytes.
+     */
+    protected void initSoundTrackCache() {
+        String directory = getFromEnvOrProperty("NUXEO_VOCAPIA_SOUNDTRACK_CACHE_DIR");
+        File cacheDirectory = directory != null && !directory.trim().isEmpty() ? new File(
+                directory.trim())
+                : new File(System.getProperty("java.io.tmpdir"),
+                        SOUNDTRACK_CACHE_DIRECTORY);
+        long maxSize = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_SOUNDTRACK_CACHE_SIZE",
+                DEFAULT_SOUNDTRACK_CACHE_SIZE) * 1024L * 1024L;
+        soundTrackCache = new SoundTrackCache(cacheDirectory, maxSize);
+        try {
+            soundTrackCache.init();
+        } catch (IOException e) {
+            log.error("Could not initialize the soundtrack cache in "
+                    + cacheDirectory + ": extracted soundtracks won't be reused",
+                    e);
+            soundTrackCache = new SoundTrackCache(null, 0);
+        }
+    }
+
+    /**
+     * The progress of the transcriptions is checkpointed between their
+     * stages in the data directory of the server, unless
+     * NUXEO_VOCAPIA_CHECKPOINTS is false.
+     */
+    protected void initCheckpointStore() {
+        String enabled = getFromEnvOrProperty("NUXEO_VOCAPIA_CHECKPOINTS");
+        if (enabled != null && !enabled.trim().isEmpty()
+                && !Boolean.parseBoolean(enabled.trim())) {
+            checkpointStore = null;
+            return;
+        }
+        String directory = getFromEnvOrProperty("NUXEO_VOCAPIA_CHECKPOINT_DIR");
+        File checkpointDirectory;
+        if (directory != null && !directory.trim().isEmpty()) {
+            checkpointDirectory = new File(directory.trim());
+        } else if (Environment.getDefault() != null) {
+            checkpointDirectory = new File(Environment.getDefault().getData(),
+                    CHECKPOINT_DIRECTORY);
         } else {
-            schemeRegistry.register(new Scheme(serviceUrl.getScheme(),
-                    serviceUrl.getPort(), PlainSocketFactory.getSocketFactory()));
+            checkpointDirectory = new File(
+                    System.getProperty("java.io.tmpdir"), CHECKPOINT_DIRECTORY);
+        }
+        checkpointStore = new CheckpointStore(checkpointDirectory);
+        try {
+            checkpointStore.init();
+        } catch (IOException e) {
+            log.error("Could not initialize the transcription checkpoints in "
+                    + checkpointDirectory
+                    + ": interrupted transcriptions will start over", e);
+            checkpointStore = null;
+        }
+    }
+
+    /**
+     * @return the store of the transcription checkpoints or null if
+     *         checkpoints are disabled
+     */
+    public CheckpointStore getCheckpointStore() {
+        return checkpointStore;
+    }
+
+    /**
+     * In pipeline mode each stage of a transcription is performed by a work
+     * of its own queue, handing off to the next stage through the
+     * checkpoints.
+     */
+    protected void initPipelineMode() {
+        pipelineMode = Boolean.parseBoolean(getFromEnvOrProperty("NUXEO_VOCAPIA_PIPELINE_MODE"));
+        if (pipelineMode && checkpointStore == null) {
+            log.warn("NUXEO_VOCAPIA_PIPELINE_MODE requires the transcription checkpoints:"
+                    + " transcriptions will not be pipelined");
+            pipelineMode = false;
+        }
+    }
+
+    public boolean isPipelineMode() {
+        return pipelineMode;
+    }
+
+    /**
+     * A streamed soundtrack is not kept anywhere: a retry or a resumed
+     * transcription would run ffmpeg again, so streaming only applies when
+     * neither the soundtrack cache nor the checkpoints are enabled.
+     */
+    protected void initStreamingExtraction() {
+        streamingExtraction = Boolean.parseBoolean(getFromEnvOrProperty("NUXEO_VOCAPIA_STREAMING_EXTRACTION"));
+        if (streamingExtraction
+                && (soundTrackCache.isEnabled() || checkpointStore != null)) {
+            log.warn("NUXEO_VOCAPIA_STREAMING_EXTRACTION is ignored as the soundtracks"
+                    + " are kept by the soundtrack cache or the checkpoints");
+            streamingExtraction = false;
+        }
+    }
+
+    /**
+     * In streaming extraction mode the soundtrack of a media whose language
+     * is known is encoded by ffmpeg while it is uploaded, instead of being
+     * written to a temporary file first.
+     */
+    public boolean isStreamingExtraction() {
+        return streamingExtraction;
+    }
+
+    /**
+     * Schedule the given stage of the transcription of a document in
+     * pipeline mode.
+     *
+     * @param category the category of the transcription stage, according to
+     *            the duration of the media
+     */
+    public void schedulePipelineStage(DocumentLocation docLoc,
+            String category, PipelineStage stage) {
+        scheduleWork(makeWork(docLoc, category, stage));
+    }
+
+    @Override
+    public void applicationStarted(ComponentContext context) throws Exception {
+        // the datasources are only bound once the application is started
+        try {
+            initConcurrencyLimiter();
+        } catch (Exception e) {
+            log.error("Could not initialize the limiter of the concurrent"
+                    + " Vocapia calls: the calls will not be limited", e);
+        }
+        resumeCheckpointedTranscriptions();
+    }
+
+    /**
+     * Schedule again the transcriptions interrupted by the previous shutdown:
+     * they resume from their last checkpoint. The jobs already submitted in
+     * asynchronous mode are only polled.
+     */
+    protected void resumeCheckpointedTranscriptions() {
+        if (checkpointStore == null || getClient() == null) {
+            return;
+        }
+        for (TranscriptionCheckpoint checkpoint : checkpointStore.list()) {
+            DocumentLocation docLoc = new DocumentLocationImpl(
+                    checkpoint.repositoryName, new IdRef(checkpoint.docId));
+            if (checkpoint.stage == TranscriptionCheckpoint.Stage.SUBMITTED
+                    && asyncMode) {
+                TranscriptionJob job = new TranscriptionJob(docLoc,
+                        checkpoint.blobPropertyPath, checkpoint.endpointName,
+                        checkpoint.jobId, checkpoint.detectedLanguage,
+                        checkpoint.language, checkpoint.sourceDigest);
+                registerJob(job);
+                if (concurrencyLimiter != null) {
+                    // the remote decode still runs: count it again
+                    jobsWithoutPermit.add(job);
+                }
+            } else {
+                String category = checkpoint.category != null ? checkpoint.category
+                        : TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LONG;
+                scheduleWork(makeWork(docLoc, category,
+                        getResumeStage(checkpoint)));
+            }
+            log.info("Resuming " + checkpoint);
+        }
+    }
+
+    /**
+     * @return the pipeline stage following the checkpoint or null if not in
+     *         pipeline mode
+     */
+    protected PipelineStage getResumeStage(TranscriptionCheckpoint checkpoint) {
+        if (!pipelineMode) {
+            return null;
+        }
+        switch (checkpoint.stage) {
+        case STARTED:
+            return PipelineStage.EXTRACTION;
+        case EXTRACTED:
+            return PipelineStage.LANGUAGE_DETECTION;
+        case TRANSCRIBED:
+            return PipelineStage.SAVING;
+        default:
+            return PipelineStage.TRANSCRIPTION;
+        }
+    }
+
+    protected void schedulePollWorks() {
+        if (pendingJobs.isEmpty()) {
+            return;
+        }
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        if (workManager == null) {
+            return;
+        }
+        for (TranscriptionJob job : pendingJobs.values()) {
+            workManager.schedule(makePollWork(job),
+                    Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+        }
+    }
+
+    /**
+     * The "default" profile (default) keeps the ffmpeg defaults. The "speech"
+     * extraction profile downmixes the soundtrack to a 16 kHz mono low
+     * bitrate MP3, which is all the speech recognition needs.
+     */
+    public String getExtractionProfile() {
+        return extractionProfile;
+    }
+
+    public String getExtractionConverterName() {
+        if (EXTRACTION_PROFILE_DEFAULT.equals(extractionProfile)) {
+            return DEFAULT_EXTRACTION_CONVERTER;
+        }
+        return SPEECH_EXTRACTION_CONVERTER;
+    }
+
+    public void recordSourceBytesNotUploaded(long bytes) {
+        sourceBytesNotUploaded.addAndGet(bytes);
+    }
+
+    /**
+     * @return the cumulated difference between the size of the source media
+     *         and the size of the soundtracks extracted from them since
+     *         startup. Media uploaded as is or only remuxed are not counted.
+     */
+    public long getSourceBytesNotUploaded() {
+        return sourceBytesNotUploaded.get();
+    }
+
+    /**
+     * Results of the previous transcriptions by content digest, language and
+     * model. A size of 0 disables the cache.
+     */
+    public TranscriptionCache getResultCache() {
+        return resultCache;
+    }
+
+    public SoundTrackCache getSoundTrackCache() {
+        return soundTrackCache;
+    }
+
+    /**
+     * Whether the raw service payloads are archived on the documents in
+     * trans:raw so that the sections can be rebuilt with
+     * {@link #launchResegmentation(String, double)}.
+     */
+    public boolean isRawStorageEnabled() {
+        return rawStorageEnabled;
+    }
+
+    /**
+     * Long transcriptions store one row per item of the trans:sections list:
+     * in compact mode the sections are saved in a single indexed blob
+     * instead, see {@link CompactTranscription}.
+     */
+    public boolean isCompactSections() {
+        return compactSections;
+    }
+
+    /**
+     * Rebuild the transcription sections of all the live documents of the
+     * repository that have a raw transcription archive, splitting the speech
+     * segments in parts of at most the given duration. The documents are
+     * processed by pages of RESEGMENTATION_BATCH_SIZE without calling the
+     * service, each page scheduling the next one.
+     */
+    public void launchResegmentation(String repositoryName,
+            double maxSegmentDuration) {
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        workManager.schedule(new ResegmentationWork(repositoryName, null,
+                RESEGMENTATION_BATCH_SIZE, maxSegmentDuration));
+    }
+
+    /**
+     * Schedule the transcription of the documents of the result set of the
+     * query that do not have one yet. The transcriptions are scheduled at
+     * NUXEO_VOCAPIA_BACKFILL_RATE per minute at most, and only while less
+     * than NUXEO_VOCAPIA_BACKFILL_MAX_QUEUED are waiting in the queues.
+     *
+     * @param query an NXQL query, paged on ecm:uuid: its ORDER BY clause is
+     *            ignored
+     * @return the backfill to monitor, pause or cancel
+     */
+    public Backfill startBackfill(String repositoryName, String query) {
+        Backfill backfill = new Backfill(UUID.randomUUID().toString(),
+                repositoryName, query);
+        backfills.put(backfill.id, backfill);
+        scheduleBackfillWork(backfill);
+        return backfill;
+    }
+
+    protected void scheduleBackfillWork(Backfill backfill) {
+        scheduleBackfillWork(backfill, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+    }
+
+    protected void scheduleBackfillWork(Backfill backfill,
+            Scheduling scheduling) {
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        workManager.schedule(new BackfillWork(backfill, BACKFILL_PAGE_SIZE,
+                getIntFromEnvOrProperty("NUXEO_VOCAPIA_BACKFILL_RATE",
+                        DEFAULT_BACKFILL_RATE), getIntFromEnvOrProperty(
+                        "NUXEO_VOCAPIA_BACKFILL_MAX_QUEUED",
+                        DEFAULT_BACKFILL_MAX_QUEUED)), scheduling);
+    }
+
+    public Backfill getBackfill(String id) {
+        return backfills.get(id);
+    }
+
+    public List<Backfill> getBackfills() {
+        return new ArrayList<Backfill>(backfills.values());
+    }
+
+    public void pauseBackfill(String id) {
+        Backfill backfill = backfills.get(id);
+        if (backfill != null) {
+            backfill.pause();
+        }
+    }
+
+    /**
+     * Resume a paused backfill, also after its work was suspended by a
+     * shutdown of the WorkManager. The work of a paused backfill returns: a
+     * new one is scheduled, queued behind the previous one if it is still
+     * running on the single backfill thread.
+     */
+    public void resumeBackfill(String id) {
+        Backfill backfill = backfills.get(id);
+        if (backfill != null && !backfill.isFinished()) {
+            backfill.resume();
+            scheduleBackfillWork(backfill, Scheduling.IF_NOT_SCHEDULED);
+        }
+    }
+
+    public void cancelBackfill(String id) {
+        Backfill backfill = backfills.get(id);
+        if (backfill != null) {
+            backfill.cancel();
+        }
+    }
+
+    /**
+     * @return the number of transcriptions waiting in the queues, including
+     *         the queues of the pipeline stages where transcriptions are
+     *         first scheduled in pipeline mode
+     */
+    public int getScheduledTranscriptionCount() {
+        WorkManager workManager = Framework.getLocalService(WorkManager.class);
+        int count = 0;
+        for (String category : new String[] {
+                TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION,
+                TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LONG,
+                TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_EXTRACTION,
+                TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LID,
+                TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_SAVING }) {
+            count += workManager.getQueueSize(
+                    workManager.getCategoryQueueId(category), State.SCHEDULED);
+        }
+        return count;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Service wide circuit breaker: while it is open, the transcription works
+     * wait before calling the backend instead of failing.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Chunked transcription only applies to the synchronous mode.
+     */
+    public boolean isChunkedMode() {
+        return chunkedMode && !asyncMode;
+    }
+
+    /**
+     * @return the target duration of the chunks in milliseconds
+     */
+    public long getChunkDuration() {
+        return chunkDuration;
+    }
+
+    public ExecutorService getChunkExecutor() {
+        return chunkExecutor;
+    }
+
+    /**
+     * @return the number of excerpts submitted to the language detection
+     *         instead of the full soundtrack, 0 to always send the full
+     *         soundtrack
+     */
+    public int getLidExcerptCount() {
+        return lidExcerptCount;
+    }
+
+    /**
+     * @return the duration of each language detection excerpt in
+     *         milliseconds
+     */
+    public long getLidExcerptDuration() {
+        return lidExcerptDuration;
+    }
+
+    public boolean isAsyncMode() {
+        return asyncMode;
+    }
+
+    public String getAsyncSubmitParameters() {
+        return asyncSubmitParameters;
+    }
+
+    public String getAsyncResultMethod() {
+        return asyncResultMethod;
+    }
+
+    /**
+     * Register a job submitted in asynchronous mode so that its result gets
+     * polled. A previous job for the same document is forgotten.
+     */
+    public void registerJob(TranscriptionJob job) {
+        TranscriptionJob previous = pendingJobs.put(job.docLoc, job);
+        if (previous != null && previous != job) {
+            releasePermit(previous);
+        }
+    }
+
+    /**
+     * Forget a job whose result was saved or that failed, along with its
+     * checkpoint.
+     */
+    public void unregisterJob(TranscriptionJob job) {
+        pendingJobs.remove(job.docLoc, job);
+        releasePermit(job);
+        if (checkpointStore != null) {
+            TranscriptionCheckpoint checkpoint = checkpointStore.load(CheckpointStore.makeKey(
+                    job.docLoc.getServerName(),
+                    job.docLoc.getDocRef().toString(), job.blobPropertyPath));
+            if (checkpoint != null && job.jobId.equals(checkpoint.jobId)) {
+                checkpointStore.remove(checkpoint);
+            }
+        }
+    }
+
+    protected void releasePermit(TranscriptionJob job) {
+        ConcurrencyLimiter.Permit permit = job.getPermit();
+        job.setPermit(null);
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (permit != null && limiter != null) {
+            limiter.release(permit);
         }
+    }
+
+    /**
+     * Take a permit for the jobs resumed after a restart, without waiting so
+     * as not to hold the scheduler thread: retried on the next run while the
+     * permits are all taken.
+     */
+    protected void acquireResumedJobPermits() {
+        ConcurrencyLimiter limiter = concurrencyLimiter;
+        TranscriptionJob job;
+        while ((job = jobsWithoutPermit.peek()) != null) {
+            if (limiter == null || pendingJobs.get(job.docLoc) != job) {
+                // done or replaced in the meantime
+                jobsWithoutPermit.poll();
+                continue;
+            }
+            ConcurrencyLimiter.Permit permit;
+            try {
+                permit = limiter.acquire(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (permit == null) {
+                return;
+            }
+            job.setPermit(permit);
+            jobsWithoutPermit.poll();
+            if (pendingJobs.get(job.docLoc) != job) {
+                releasePermit(job);
+            }
+        }
+    }
+
+    /**
+     * New submissions wait for the resumed jobs to be counted against the
+     * limit, so that a restart does not let the cluster exceed it.
+     */
+    public boolean hasJobsWithoutPermit() {
+        return !jobsWithoutPermit.isEmpty();
+    }
+
+    public int getPendingJobCount() {
+        return pendingJobs.size();
+    }
 
-        // Create an HttpClient with the ThreadSafeClientConnManager.
-        // This connection manager must be used if more than one thread will
-        // be using the HttpClient.
-        ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(
-                schemeRegistry);
-        httpClient = new DefaultHttpClient(cm);
+    protected ScheduledExecutorService makeScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Nuxeo-Vocapia-Scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
     @Override
     public void activate(ComponentContext context) throws Exception {
-        String url = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_URL");
-        if (url == null || url.isEmpty()) {
-            throw new RuntimeException(
-                    "NUXEO_VOCAPIA_SERVICE_URL environment variable is undefined");
+        scheduler = makeScheduler();
+        initHttpClient();
+        initAsyncMode();
+        initChunkedMode();
+        initHealthChecks();
+        extractionProfile = getFromEnvOrProperty("NUXEO_VOCAPIA_EXTRACTION_PROFILE");
+        if (extractionProfile == null || extractionProfile.trim().isEmpty()) {
+            extractionProfile = EXTRACTION_PROFILE_DEFAULT;
         }
-        serviceUrl = new URI(url);
-        username = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_USERNAME");
-        password = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_PASSWORD");
-        initHttpClient(serviceUrl);
+        // the cached transcriptions stay on the heap: bound their footprint
+        // along with their number
+        resultCache = new TranscriptionCache(getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_RESULT_CACHE_SIZE", DEFAULT_RESULT_CACHE_SIZE),
+                getIntFromEnvOrProperty("NUXEO_VOCAPIA_RESULT_CACHE_MAX_SIZE",
+                        DEFAULT_RESULT_CACHE_MAX_SIZE) * 1024L * 1024L);
+        initSoundTrackCache();
+        initCheckpointStore();
+        initPipelineMode();
+        initStreamingExtraction();
+        longMediaDuration = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_LONG_MEDIA_DURATION", DEFAULT_LONG_MEDIA_DURATION);
+        triggerDebounce = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_TRIGGER_DEBOUNCE", DEFAULT_TRIGGER_DEBOUNCE);
+        String storeRaw = getFromEnvOrProperty("NUXEO_VOCAPIA_STORE_RAW");
+        rawStorageEnabled = storeRaw == null || storeRaw.trim().isEmpty()
+                || Boolean.parseBoolean(storeRaw.trim());
+        compactSections = Boolean.parseBoolean(getFromEnvOrProperty("NUXEO_VOCAPIA_COMPACT_SECTIONS"));
+        lidExcerptCount = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_LID_EXCERPT_COUNT", DEFAULT_LID_EXCERPT_COUNT);
+        lidExcerptDuration = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_LID_EXCERPT_DURATION",
+                DEFAULT_LID_EXCERPT_DURATION);
+        retryPolicy = new RetryPolicy(getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_MAX_RETRIES", DEFAULT_MAX_RETRIES),
+                getIntFromEnvOrProperty("NUXEO_VOCAPIA_RETRY_INITIAL_DELAY",
+                        DEFAULT_RETRY_INITIAL_DELAY), getIntFromEnvOrProperty(
+                        "NUXEO_VOCAPIA_RETRY_MAX_DELAY",
+                        DEFAULT_RETRY_MAX_DELAY));
+        circuitBreaker = new CircuitBreaker(getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_CIRCUIT_BREAKER_THRESHOLD",
+                DEFAULT_CIRCUIT_BREAKER_THRESHOLD), getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_CIRCUIT_BREAKER_OPEN_DURATION",
+                DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION));
 
         // TODO: use an extension point instead
         shortToLongLangCodes.put("ar", "ara");
@@ -104,6 +944,178 @@ public class TranscriptionService extends DefaultComponent {
         updateLongToShortLangCodes();
     }
 
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (ENDPOINTS_XP.equals(extensionPoint)) {
+            VocapiaEndpointDescriptor descriptor = (VocapiaEndpointDescriptor) contribution;
+            synchronized (endpointDescriptors) {
+                if (descriptor.isEnabled()) {
+                    endpointDescriptors.put(descriptor.getName(), descriptor);
+                } else {
+                    endpointDescriptors.remove(descriptor.getName());
+                }
+                // rebuilt lazily with the new endpoints
+                client = null;
+            }
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor)
+            throws Exception {
+        if (ENDPOINTS_XP.equals(extensionPoint)) {
+            VocapiaEndpointDescriptor descriptor = (VocapiaEndpointDescriptor) contribution;
+            synchronized (endpointDescriptors) {
+                endpointDescriptors.remove(descriptor.getName());
+                client = null;
+            }
+        }
+    }
+
+    /**
+     * @return the client for the configured endpoints or null if no endpoint
+     *         is configured.
+     */
+    public VocapiaClient getClient() {
+        VocapiaClient result = client;
+        if (result != null || httpClient == null) {
+            return result;
+        }
+        synchronized (endpointDescriptors) {
+            if (client == null) {
+                List<VocapiaEndpoint> endpoints = makeEndpoints();
+                if (endpoints.isEmpty()) {
+                    return null;
+                }
+                client = new VocapiaClient(httpClient, endpoints,
+                        getIntFromEnvOrProperty(
+                                "NUXEO_VOCAPIA_ENDPOINT_MAX_FAILURES",
+                                DEFAULT_ENDPOINT_MAX_FAILURES),
+                        getIntFromEnvOrProperty(
+                                "NUXEO_VOCAPIA_ENDPOINT_QUARANTINE",
+                                DEFAULT_ENDPOINT_QUARANTINE));
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Endpoints are contributed to the "endpoints" extension point. For
+     * backward compatibility NUXEO_VOCAPIA_SERVICE_URL can also hold a comma
+     * separated list of URLs sharing the same credentials.
+     */
+    protected List<VocapiaEndpoint> makeEndpoints() {
+        List<VocapiaEndpoint> endpoints = new ArrayList<VocapiaEndpoint>();
+        String urls = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_URL");
+        if (urls != null) {
+            String username = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_USERNAME");
+            String password = getFromEnvOrProperty("NUXEO_VOCAPIA_SERVICE_PASSWORD");
+            for (String url : urls.split(",")) {
+                url = url.trim();
+                if (!url.isEmpty()) {
+                    endpoints.add(new VocapiaEndpoint(url, URI.create(url),
+                            username, password, 1));
+                }
+            }
+        }
+        for (VocapiaEndpointDescriptor descriptor : endpointDescriptors.values()) {
+            endpoints.add(new VocapiaEndpoint(descriptor.getName(),
+                    URI.create(descriptor.getUrl().trim()),
+                    descriptor.getUsername(), descriptor.getPassword(),
+                    descriptor.getWeight()));
+        }
+        return endpoints;
+    }
+
+    protected void initHealthChecks() {
+        long interval = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_HEALTH_CHECK_INTERVAL",
+                DEFAULT_HEALTH_CHECK_INTERVAL);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VocapiaClient current = getClient();
+                    if (current != null) {
+                        current.checkHealth();
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Failed to check the Vocapia endpoints", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The Vocapia license and hardware allow a limited number of concurrent
+     * decodes for the whole cluster: NUXEO_VOCAPIA_MAX_CONCURRENT_CALLS
+     * permits are shared by the nodes through a lease table in the
+     * NUXEO_VOCAPIA_PERMIT_DATASOURCE database. In asynchronous mode a job
+     * holds its permit from its submission until its result is fetched. The
+     * jobs resumed after a restart take a new one.
+     */
+    protected void initConcurrencyLimiter() throws NamingException,
+            SQLException {
+        int maxCalls = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_MAX_CONCURRENT_CALLS",
+                DEFAULT_MAX_CONCURRENT_CALLS);
+        if (maxCalls <= 0) {
+            concurrencyLimiter = null;
+            return;
+        }
+        String dataSourceName = getFromEnvOrProperty("NUXEO_VOCAPIA_PERMIT_DATASOURCE");
+        if (dataSourceName == null || dataSourceName.trim().isEmpty()) {
+            dataSourceName = DEFAULT_PERMIT_DATASOURCE;
+        }
+        String nodeId = getFromEnvOrProperty("NUXEO_VOCAPIA_NODE_ID");
+        if (nodeId == null || nodeId.trim().isEmpty()) {
+            // pid@hostname
+            nodeId = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        long leaseDuration = getIntFromEnvOrProperty(
+                "NUXEO_VOCAPIA_PERMIT_LEASE_DURATION",
+                DEFAULT_PERMIT_LEASE_DURATION);
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(
+                DataSourceHelper.getDataSource(dataSourceName.trim()),
+                nodeId.trim(), maxCalls, leaseDuration,
+                getIntFromEnvOrProperty("NUXEO_VOCAPIA_PERMIT_POLL_INTERVAL",
+                        DEFAULT_PERMIT_POLL_INTERVAL));
+        limiter.init();
+        long renewInterval = Math.max(1, leaseDuration / 3);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                limiter.renewLeases();
+            }
+        }, renewInterval, renewInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquireResumedJobPermits();
+                } catch (RuntimeException e) {
+                    log.error("Failed to take the permits of the resumed"
+                            + " jobs", e);
+                }
+            }
+        }, limiter.pollInterval, limiter.pollInterval, TimeUnit.MILLISECONDS);
+        concurrencyLimiter = limiter;
+    }
+
+    /**
+     * Gauges of the calls waiting for a permit and of the permits in use are
+     * available on the limiter, for this node and for the whole cluster.
+     *
+     * @return the cluster wide limiter of the concurrent calls to the service
+     *         or null if the calls are not limited
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
     protected void updateLongToShortLangCodes() {
         longToShortLangCodes.clear();
         for (Map.Entry<String, String> entry : shortToLongLangCodes.entrySet()) {
@@ -119,6 +1131,36 @@ public class TranscriptionService extends DefaultComponent {
         return value;
     }
 
+    public int getIntFromEnvOrProperty(String envVariableName,
+            int defaultValue) {
+        String value = getFromEnvOrProperty(envVariableName);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn(String.format(
+                    "Invalid integer value '%s' for %s, using default: %d",
+                    value, envVariableName, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Live statistics of the HTTP connection pool used to call the Vocapia
+     * service: the number of leased connections should be compared to the
+     * number of threads of the speech_transcription queue.
+     *
+     * @return the pool statistics or null if the service is not initialized
+     */
+    public PoolStats getConnectionPoolStats() {
+        if (connectionManager == null) {
+            return null;
+        }
+        return connectionManager.getTotalStats();
+    }
+
     @Override
     public void deactivate(ComponentContext context) throws Exception {
         WorkManager workManager = Framework.getLocalService(WorkManager.class);
@@ -126,23 +1168,276 @@ public class TranscriptionService extends DefaultComponent {
             workManager.shutdownQueue(
                     workManager.getCategoryQueueId(TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION),
                     10, TimeUnit.SECONDS);
+            workManager.shutdownQueue(
+                    workManager.getCategoryQueueId(TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LONG),
+                    10, TimeUnit.SECONDS);
+            for (String category : new String[] {
+                    TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_EXTRACTION,
+                    TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LID,
+                    TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_SAVING }) {
+                workManager.shutdownQueue(
+                        workManager.getCategoryQueueId(category), 10,
+                        TimeUnit.SECONDS);
+            }
+            workManager.shutdownQueue(
+                    workManager.getCategoryQueueId(TranscriptionPollWork.CATEGORY_SPEECH_TRANSCRIPTION_POLL),
+                    10, TimeUnit.SECONDS);
+            workManager.shutdownQueue(
+                    workManager.getCategoryQueueId(ResegmentationWork.CATEGORY_SPEECH_TRANSCRIPTION_RESEGMENTATION),
+                    10, TimeUnit.SECONDS);
+            workManager.shutdownQueue(
+                    workManager.getCategoryQueueId(BackfillWork.CATEGORY_SPEECH_TRANSCRIPTION_BACKFILL),
+                    10, TimeUnit.SECONDS);
+        }
+        synchronized (pendingTriggers) {
+            for (ScheduledFuture<?> trigger : pendingTriggers.values()) {
+                trigger.cancel(false);
+            }
+            pendingTriggers.clear();
+        }
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.releaseAll();
+            concurrencyLimiter = null;
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdownNow();
+            chunkExecutor = null;
         }
+        chunkedMode = false;
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+        pendingJobs.clear();
+        jobsWithoutPermit.clear();
+        statusRegistry.clear();
+        backfills.clear();
+        resultCache.clear();
+        asyncMode = false;
         httpClient = null;
-        serviceUrl = null;
-        username = null;
-        password = null;
+        client = null;
         shortToLongLangCodes.clear();
         longToShortLangCodes.clear();
     }
 
+    /**
+     * Schedule the transcription of the document on the queue matching the
+     * expected duration of its media.
+     */
+    public void launchTranscription(DocumentModel doc) {
+        launchTranscription(new DocumentLocationImpl(doc),
+                estimateDuration(doc));
+    }
+
+    /**
+     * Schedule the transcription of a document whose media changed, unless
+     * the current content was already transcribed. The requests for the same
+     * document are coalesced over NUXEO_VOCAPIA_TRIGGER_DEBOUNCE milliseconds:
+     * only the last one of a burst schedules a transcription.
+     */
+    public void requestTranscription(DocumentModel doc) {
+        final DocumentLocation docLoc = new DocumentLocationImpl(doc);
+        if (isTranscribed(doc)) {
+            log.debug("Media of " + docLoc + " already transcribed");
+            skippedTriggers.incrementAndGet();
+            synchronized (pendingTriggers) {
+                ScheduledFuture<?> pending = pendingTriggers.remove(docLoc);
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+            }
+            return;
+        }
+        final double expectedDuration = estimateDuration(doc);
+        if (triggerDebounce <= 0 || scheduler == null) {
+            launchTranscription(docLoc, expectedDuration);
+            return;
+        }
+        synchronized (pendingTriggers) {
+            ScheduledFuture<?> previous = pendingTriggers.remove(docLoc);
+            if (previous != null && previous.cancel(false)) {
+                coalescedTriggers.incrementAndGet();
+            }
+            final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+            self[0] = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pendingTriggers) {
+                        // a newer trigger may already be pending
+                        if (pendingTriggers.get(docLoc) == self[0]) {
+                            pendingTriggers.remove(docLoc);
+                        }
+                    }
+                    try {
+                        launchTranscription(docLoc, expectedDuration);
+                    } catch (RuntimeException e) {
+                        log.error("Could not schedule the transcription of "
+                                + docLoc, e);
+                    }
+                }
+            }, triggerDebounce, TimeUnit.MILLISECONDS);
+            pendingTriggers.put(docLoc, self[0]);
+        }
+    }
+
+    /**
+     * @return true if the transcription of the document was computed from
+     *         its current media
+     */
+    public boolean isTranscribed(DocumentModel doc) {
+        if (!doc.hasFacet(TranscriptionWork.HAS_SPEECH_TRANSCRIPTION)) {
+            return false;
+        }
+        try {
+            Serializable media = doc.getPropertyValue(MEDIA_BLOB_PATH);
+            if (!(media instanceof Blob)) {
+                return false;
+            }
+            // not computing a missing digest: reading the media is what the
+            // transcription would do anyway
+            String digest = ((Blob) media).getDigest();
+            return digest != null
+                    && digest.equals(doc.getPropertyValue(TranscriptionWork.TRANS_SOURCE_DIGEST));
+        } catch (ClientException e) {
+            log.debug("Could not check the transcription of " + doc.getId(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of transcription requests superseded by a later one
+     *         for the same document
+     */
+    public long getCoalescedTriggerCount() {
+        return coalescedTriggers.get();
+    }
+
+    /**
+     * @return the number of transcription requests skipped as the media was
+     *         already transcribed
+     */
+    public long getSkippedTriggerCount() {
+        return skippedTriggers.get();
+    }
+
     public void launchTranscription(DocumentLocation docLoc) {
-        if (serviceUrl == null) {
+        final double[] duration = new double[] { -1 };
+        final DocumentRef docRef = docLoc.getDocRef();
+        try {
+            new UnrestrictedSessionRunner(docLoc.getServerName()) {
+                @Override
+                public void run() throws ClientException {
+                    if (session.exists(docRef)) {
+                        duration[0] = estimateDuration(session.getDocument(docRef));
+                    }
+                }
+            }.runUnrestricted();
+        } catch (ClientException e) {
+            log.warn("Could not estimate the media duration of " + docLoc, e);
+        }
+        launchTranscription(docLoc, duration[0]);
+    }
+
+    /**
+     * @param expectedDuration duration of the media in seconds, negative if
+     *            unknown
+     */
+    public void launchTranscription(DocumentLocation docLoc,
+            double expectedDuration) {
+        if (getClient() == null) {
             throw new RuntimeException(
                     "TranscriptionService failed to initialize properly.");
         }
+        scheduleWork(makeWork(docLoc,
+                getTranscriptionCategory(expectedDuration),
+                pipelineMode ? PipelineStage.EXTRACTION : null));
+    }
+
+    /**
+     * Schedule the work unless the same one is already scheduled or running,
+     * on its queue or on the other transcription queue, keeping track of it
+     * in the status registry.
+     */
+    protected void scheduleWork(TranscriptionWork work) {
         WorkManager workManager = Framework.getLocalService(WorkManager.class);
-        workManager.schedule(makeWork(docLoc),
-                Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+        if (isInOtherCategory(workManager, work)) {
+            log.debug(String.format(
+                    "Transcription of %s already scheduled or running",
+                    work.docLoc));
+            return;
+        }
+        statusRegistry.scheduled(work.docLoc, work.getCategory(),
+                work.getPipelineStage());
+        workManager.schedule(work, Scheduling.IF_NOT_RUNNING_OR_SCHEDULED);
+    }
+
+    /**
+     * The WorkManager only looks for duplicates in the queue of the work,
+     * while the same transcription may be on the other transcription queue,
+     * e.g. when the estimated duration of the media changed.
+     */
+    protected boolean isInOtherCategory(WorkManager workManager,
+            TranscriptionWork work) {
+        String otherCategory = TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION;
+        if (otherCategory.equals(work.getCategory())) {
+            otherCategory = TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LONG;
+        }
+        // equal works differ only by their category
+        return workManager.find(
+                makeWork(work.docLoc, otherCategory, work.getPipelineStage()),
+                null, true, null) != null;
+    }
+
+    /**
+     * Long media are transcribed on a dedicated queue so that they never hold
+     * back the short ones. Media of unknown duration are considered long.
+     *
+     * @param expectedDuration in seconds, negative if unknown
+     */
+    public String getTranscriptionCategory(double expectedDuration) {
+        if (expectedDuration >= 0
+                && expectedDuration * 1000 < longMediaDuration) {
+            return TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION;
+        }
+        return TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION_LONG;
+    }
+
+    /**
+     * Expected duration of the media of the document, from the video
+     * metadata if available or else from the size of the file.
+     *
+     * @return the duration in seconds or -1 if unknown
+     */
+    public double estimateDuration(DocumentModel doc) {
+        try {
+            if (doc.hasSchema("video")) {
+                Serializable duration = doc.getPropertyValue(VIDEO_DURATION);
+                if (duration instanceof Number
+                        && ((Number) duration).doubleValue() > 0) {
+                    return ((Number) duration).doubleValue();
+                }
+            }
+            Serializable media = doc.getPropertyValue(MEDIA_BLOB_PATH);
+            if (!(media instanceof Blob)) {
+                return -1;
+            }
+            Blob blob = (Blob) media;
+            if (blob.getLength() < 0) {
+                return -1;
+            }
+            String mimeType = blob.getMimeType();
+            int bitrate = mimeType != null && mimeType.startsWith("audio/") ? AUDIO_BITRATE_ESTIMATE
+                    : VIDEO_BITRATE_ESTIMATE;
+            return blob.getLength() * 8.0 / bitrate;
+        } catch (ClientException e) {
+            log.debug("Could not estimate the media duration of "
+                    + doc.getId(), e);
+            return -1;
+        }
     }
 
     public boolean isSupportedLangage(String language) {
@@ -150,26 +1445,56 @@ public class TranscriptionService extends DefaultComponent {
     }
 
     protected TranscriptionWork makeWork(DocumentLocation docLoc) {
-        return new TranscriptionWork(docLoc, MEDIA_BLOB_PATH, httpClient,
-                serviceUrl, username, password, shortToLongLangCodes,
+        return makeWork(docLoc, TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION);
+    }
+
+    protected TranscriptionWork makeWork(DocumentLocation docLoc,
+            String category) {
+        TranscriptionWork work = new TranscriptionWork(docLoc,
+                MEDIA_BLOB_PATH, getClient(), shortToLongLangCodes,
                 longToShortLangCodes);
+        work.setCategory(category);
+        return work;
+    }
+
+    protected TranscriptionWork makeWork(DocumentLocation docLoc,
+            String category, PipelineStage stage) {
+        TranscriptionWork work = makeWork(docLoc, category);
+        work.setPipelineStage(stage);
+        return work;
+    }
+
+    protected TranscriptionPollWork makePollWork(TranscriptionJob job) {
+        return new TranscriptionPollWork(job, getClient(),
+                shortToLongLangCodes, longToShortLangCodes);
     }
 
+    /**
+     * Constant time lookup in the status registry, whatever the number of
+     * scheduled transcriptions.
+     *
+     * @return the status of the transcription of the document or null if
+     *         none is in progress on this node
+     */
     public TranscriptionStatus getTranscriptionStatus(DocumentLocation docLoc) {
-        WorkManager workManager = Framework.getLocalService(WorkManager.class);
-        Work work = makeWork(docLoc);
-        int[] pos = new int[1];
-        work = workManager.find(work, null, true, pos);
-        if (work == null) {
+        TranscriptionStatusRegistry.Entry entry = statusRegistry.get(docLoc);
+        if (entry == null) {
+            if (pendingJobs.containsKey(docLoc)) {
+                // submitted in asynchronous mode, waiting for the result
+                return new TranscriptionStatus("speech_transcription", 0, 0);
+            }
             return null;
-        } else if (work.getState() == State.SCHEDULED) {
-            String queueId = workManager.getCategoryQueueId(TranscriptionWork.CATEGORY_SPEECH_TRANSCRIPTION);
-            int queueSize = workManager.listWork(queueId, State.SCHEDULED).size();
+        } else if (!entry.isRunning()) {
             return new TranscriptionStatus(
                     TranscriptionStatus.STATUS_TRANSCRIPTION_QUEUED,
-                    pos[0] + 1, queueSize);
-        } else { // RUNNING
-            return new TranscriptionStatus(work.getStatus(), 0, 0);
+                    statusRegistry.getPosition(entry),
+                    statusRegistry.getQueueSize(entry.category));
+        } else {
+            return new TranscriptionStatus(entry.getStatus(), 0, 0);
         }
     }
+
+    public TranscriptionStatusRegistry getStatusRegistry() {
+        return statusRegistry;
+    }
 }
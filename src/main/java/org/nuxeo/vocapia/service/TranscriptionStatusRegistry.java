@@ -0,0 +1,155 @@
+package org.nuxeo.vocapia.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.vocapia.service.TranscriptionWork.PipelineStage;
+
+/**
+ * Index of the transcriptions scheduled or running on this node, updated by
+ * the works on their state transitions, so that the status of a document is
+ * looked up in constant time instead of scanning the WorkManager queues.
+ *
+ * The position in the queue is estimated from the order of scheduling,
+ * assuming the works of a queue start in that order.
+ */
+public class TranscriptionStatusRegistry {
+
+    /**
+     * Transcription of a document, at most one per document: the stage of a
+     * pipelined transcription replaces the previous one.
+     */
+    public static class Entry {
+
+        public final String category;
+
+        public final PipelineStage stage;
+
+        /** Scheduling order in the queue of the category. */
+        protected final long ticket;
+
+        protected boolean running;
+
+        protected String status;
+
+        protected Entry(String category, PipelineStage stage, long ticket) {
+            this.category = category;
+            this.stage = stage;
+            this.ticket = ticket;
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Counters of the works scheduled on a queue and of the works that left
+     * it.
+     */
+    protected static class QueueCounters {
+
+        protected long scheduled;
+
+        protected long dequeued;
+    }
+
+    protected final Map<DocumentLocation, Entry> entries = new HashMap<DocumentLocation, Entry>();
+
+    protected final Map<String, QueueCounters> queues = new HashMap<String, QueueCounters>();
+
+    /**
+     * Register a work about to be scheduled. Like the WorkManager, ignore a
+     * work already scheduled or running for the same document and stage.
+     */
+    public synchronized void scheduled(DocumentLocation docLoc,
+            String category, PipelineStage stage) {
+        Entry previous = entries.get(docLoc);
+        if (previous != null) {
+            if (previous.stage == stage) {
+                return;
+            }
+            dequeue(previous);
+        }
+        QueueCounters counters = queues.get(category);
+        if (counters == null) {
+            counters = new QueueCounters();
+            queues.put(category, counters);
+        }
+        entries.put(docLoc, new Entry(category, stage, ++counters.scheduled));
+    }
+
+    public synchronized void started(DocumentLocation docLoc,
+            PipelineStage stage) {
+        Entry entry = entries.get(docLoc);
+        if (entry != null && entry.stage == stage && !entry.running) {
+            dequeue(entry);
+            entry.running = true;
+        }
+    }
+
+    public synchronized void setStatus(DocumentLocation docLoc,
+            PipelineStage stage, String status) {
+        Entry entry = entries.get(docLoc);
+        if (entry != null && entry.stage == stage) {
+            entry.status = status;
+        }
+    }
+
+    /**
+     * Forget the work of the given stage once done, canceled or failed.
+     */
+    public synchronized void finished(DocumentLocation docLoc,
+            PipelineStage stage) {
+        Entry entry = entries.get(docLoc);
+        if (entry != null && entry.stage == stage) {
+            dequeue(entry);
+            entries.remove(docLoc);
+        }
+    }
+
+    protected void dequeue(Entry entry) {
+        if (!entry.running) {
+            queues.get(entry.category).dequeued++;
+            // counted once
+            entry.running = true;
+        }
+    }
+
+    /**
+     * @return the transcription of the document or null if none is
+     *         scheduled or running
+     */
+    public synchronized Entry get(DocumentLocation docLoc) {
+        return entries.get(docLoc);
+    }
+
+    /**
+     * @return the estimated position of a scheduled transcription in its
+     *         queue, starting at 1
+     */
+    public synchronized int getPosition(Entry entry) {
+        QueueCounters counters = queues.get(entry.category);
+        return (int) Math.max(1, entry.ticket - counters.dequeued);
+    }
+
+    /**
+     * @return the number of transcriptions waiting in the queue of the
+     *         category
+     */
+    public synchronized int getQueueSize(String category) {
+        QueueCounters counters = queues.get(category);
+        return counters == null ? 0
+                : (int) (counters.scheduled - counters.dequeued);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        queues.clear();
+    }
+}
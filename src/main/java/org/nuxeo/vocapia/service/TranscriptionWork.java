@@ -2,27 +2,30 @@ package org.nuxeo.vocapia.service;
 
 import static org.nuxeo.ecm.core.work.api.Work.State.FAILED;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.URI;
-import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import javax.xml.bind.UnmarshalException;
+import javax.xml.stream.XMLStreamException;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.ByteArrayEntity;
 import org.nuxeo.common.collections.ScopeType;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
@@ -32,10 +35,10 @@ import org.nuxeo.ecm.core.api.DocumentRef;
 import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
 import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
 import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
-import org.nuxeo.ecm.core.api.event.CoreEventConstants;
-import org.nuxeo.ecm.core.api.event.DocumentEventCategories;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.impl.blob.StreamingBlob;
+import org.nuxeo.ecm.core.api.event.CoreEventConstants;
+import org.nuxeo.ecm.core.api.event.DocumentEventCategories;
 import org.nuxeo.ecm.core.convert.api.ConversionService;
 import org.nuxeo.ecm.core.event.Event;
 import org.nuxeo.ecm.core.event.EventService;
@@ -43,9 +46,21 @@ import org.nuxeo.ecm.core.event.impl.DocumentEventContext;
 import org.nuxeo.ecm.core.schema.FacetNames;
 import org.nuxeo.ecm.core.work.AbstractWork;
 import org.nuxeo.runtime.api.Framework;
-import org.nuxeo.runtime.services.streaming.FileSource;
-import org.nuxeo.runtime.services.streaming.StreamSource;
-import org.nuxeo.vocapia.service.xml.AudioDoc;
+import org.nuxeo.vocapia.converter.AudioFormat;
+import org.nuxeo.vocapia.converter.Mp3Extractor;
+import org.nuxeo.vocapia.converter.SilenceSplitter;
+import org.nuxeo.vocapia.converter.SilenceSplitter.Chunk;
+import org.nuxeo.vocapia.converter.SoundTrackPipe;
+import org.nuxeo.vocapia.service.ConcurrencyLimiter.Permit;
+import org.nuxeo.vocapia.service.TranscriptionCheckpoint.Stage;
+import org.nuxeo.vocapia.service.VocapiaClient.JobHandle;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.LanguageDetector;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.SegmentCollector;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.SegmentHandler;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.TranscriptionBuilder;
+import org.nuxeo.vocapia.service.xml.RawTranscriptionArchive;
+import org.nuxeo.vocapia.service.xml.RawTranscriptionArchive.Part;
+import org.nuxeo.vocapia.service.xml.Segment;
 
 public class TranscriptionWork extends AbstractWork {
 
@@ -57,49 +72,208 @@ public class TranscriptionWork extends AbstractWork {
 
     public static final String CATEGORY_SPEECH_TRANSCRIPTION = "speech_transcription";
 
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_LONG = "speech_transcription_long";
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_EXTRACTION = "speech_transcription_extraction";
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_LID = "speech_transcription_lid";
+
+    public static final String CATEGORY_SPEECH_TRANSCRIPTION_SAVING = "speech_transcription_saving";
+
+    /**
+     * Stages of a transcription in pipeline mode, each performed by a work
+     * of its own queue so that the queues can be sized after the resource
+     * each stage uses: CPU for the extraction, the service for the language
+     * detection and the transcription, the repository for the saving.
+     */
+    public enum PipelineStage {
+        EXTRACTION, LANGUAGE_DETECTION, TRANSCRIPTION, SAVING
+    }
+
     protected static final String DC_LANGUAGE = "dc:language";
 
-    protected static final String TRANS_SECTIONS = "trans:sections";
+    protected static final long CIRCUIT_BREAKER_CHECK_DELAY = 5 * 1000;
+
+    protected static final long PERMIT_CHECK_DELAY = 5 * 1000;
+
+    /** Documents with the same content checked for a matching language. */
+    protected static final int MAX_TRANSCRIBED_DOCUMENTS = 10;
+
+    public static final String TRANS_SECTIONS = "trans:sections";
+
+    public static final String TRANS_SECTIONS_BLOB = "trans:sections_blob";
+
+    public static final String TRANS_SECTION_COUNT = "trans:section_count";
+
+    public static final String TRANS_SUMMARY = "trans:summary";
+
+    public static final String TRANS_TEXT = "trans:text";
+
+    public static final String TRANS_RAW = "trans:raw";
+
+    public static final String TRANS_SOURCE_DIGEST = "trans:source_digest";
 
     protected final DocumentLocation docLoc;
 
     protected final String blobPropertyPath;
 
-    protected final HttpClient httpClient;
+    protected final VocapiaClient client;
 
     protected final Map<String, String> shortToLongLangCodes;
 
     protected final Map<String, String> longToShortLangCodes;
 
-    protected URI serviceUrl;
+    protected String category = CATEGORY_SPEECH_TRANSCRIPTION;
+
+    /** Stage performed by this work in pipeline mode, null otherwise. */
+    protected PipelineStage pipelineStage;
+
+    /** Digest of the media being transcribed, saved along the results. */
+    protected String mediaDigest;
 
-    protected String username;
+    /**
+     * Format of the soundtrack uploaded to the service, hence of its chunks
+     * and excerpts cut by stream copy.
+     */
+    protected AudioFormat soundTrackFormat = AudioFormat.MP3;
 
-    protected String password;
+    /**
+     * Whether {@link #callWithRetries(ServiceCall)} keeps the permit of a
+     * successful call in {@link #heldPermit} instead of releasing it.
+     */
+    protected boolean holdPermit;
+
+    /** Permit of the last successful call, when {@link #holdPermit} is set. */
+    protected Permit heldPermit;
+
+    /** Raw payloads of the current transcription, kept in temporary files. */
+    protected final List<Part> rawParts = Collections.synchronizedList(new ArrayList<Part>());
+
+    /**
+     * Temporary copy of a raw payload being received from the service.
+     */
+    protected static class RawCopy {
+
+        protected final File file;
+
+        protected final OutputStream out;
+
+        protected RawCopy(File file, OutputStream out) {
+            this.file = file;
+            this.out = out;
+        }
+    }
 
     public TranscriptionWork(DocumentLocation docLoc, String blobPropertyPath,
-            HttpClient httpClient, URI serviceUrl, String username,
-            String password, Map<String, String> shortToLongLangCodes,
+            VocapiaClient client, Map<String, String> shortToLongLangCodes,
             Map<String, String> longToShortLangCodes) {
         this.docLoc = docLoc;
         this.blobPropertyPath = blobPropertyPath;
-        this.httpClient = httpClient;
-        this.serviceUrl = serviceUrl;
-        this.username = username;
-        this.password = password;
+        this.client = client;
         this.shortToLongLangCodes = shortToLongLangCodes;
         this.longToShortLangCodes = longToShortLangCodes;
     }
 
+    @Override
+    public String getCategory() {
+        if (pipelineStage == null) {
+            return category;
+        }
+        switch (pipelineStage) {
+        case EXTRACTION:
+            return CATEGORY_SPEECH_TRANSCRIPTION_EXTRACTION;
+        case LANGUAGE_DETECTION:
+            return CATEGORY_SPEECH_TRANSCRIPTION_LID;
+        case SAVING:
+            return CATEGORY_SPEECH_TRANSCRIPTION_SAVING;
+        default: // TRANSCRIPTION
+            return category;
+        }
+    }
+
+    /**
+     * Set the category, hence the queue, of the work according to the
+     * expected duration of the media.
+     */
+    public void setCategory(String category) {
+        this.category = category;
+    }
+
+    /**
+     * Only perform the given stage of the transcription then hand off to the
+     * work of the next stage. The stages communicate through the
+     * checkpoints: without checkpoint store the whole transcription is
+     * performed by this work.
+     */
+    public void setPipelineStage(PipelineStage pipelineStage) {
+        this.pipelineStage = pipelineStage;
+    }
+
+    public PipelineStage getPipelineStage() {
+        return pipelineStage;
+    }
+
     @Override
     public String getTitle() {
         return String.format("Speech Transcription for: %s:%s:%s",
                 docLoc.getServerName(), docLoc.getDocRef(), blobPropertyPath);
     }
 
+    /**
+     * @return the registry to notify of the state transitions of this work,
+     *         or null
+     */
+    protected TranscriptionStatusRegistry getStatusRegistry() {
+        TranscriptionService service = getTranscriptionService();
+        return service == null ? null : service.getStatusRegistry();
+    }
+
+    @Override
+    public void setStatus(String status) {
+        super.setStatus(status);
+        TranscriptionStatusRegistry registry = getStatusRegistry();
+        if (registry != null) {
+            registry.setStatus(docLoc, pipelineStage, status);
+        }
+    }
+
+    @Override
+    public void cleanUp(boolean ok, Exception e) {
+        super.cleanUp(ok, e);
+        if (heldPermit != null) {
+            // submitted job not registered
+            TranscriptionService service = getTranscriptionService();
+            if (service != null && service.getConcurrencyLimiter() != null) {
+                service.getConcurrencyLimiter().release(heldPermit);
+            }
+            heldPermit = null;
+        }
+        if (!ok && !isSuspending()) {
+            // a failed transcription is not resumed on the next start: drop
+            // its checkpoint and the soundtrack it keeps
+            try {
+                removeCheckpoint(loadCheckpoint(null));
+            } catch (RuntimeException re) {
+                log.warn("Could not remove the checkpoint of " + docLoc, re);
+            }
+        }
+        TranscriptionStatusRegistry registry = getStatusRegistry();
+        if (registry != null) {
+            registry.finished(docLoc, pipelineStage);
+        }
+    }
+
     @Override
     public void work() throws Exception {
+        TranscriptionStatusRegistry registry = getStatusRegistry();
+        if (registry != null) {
+            registry.started(docLoc, pipelineStage);
+        }
         setProgress(Progress.PROGRESS_INDETERMINATE);
+        // Do not consume the queue while the backend is known to be down
+        if (isCallingService() && !awaitServiceAvailability()) {
+            return;
+        }
         Object[] properties = getSourceDocumentLanguageAndMedia();
         String language = (String) properties[0];
         Blob sourceMedia = (Blob) properties[1];
@@ -110,6 +284,7 @@ public class TranscriptionWork extends AbstractWork {
             log.warn(String.format(
                     "Speech transcription aborted: no media found for property '%s' on document '%s'",
                     blobPropertyPath, docLoc));
+            removeCheckpoint(loadCheckpoint(null));
             state = FAILED;
             return;
         }
@@ -118,58 +293,571 @@ public class TranscriptionWork extends AbstractWork {
         // long and won't need access to any persistent transactional resources
         commitOrRollbackTransaction();
 
+        // a missing digest is computed by reading the whole media
+        String sourceDigest = getDigest(sourceMedia);
+        mediaDigest = sourceDigest;
+        TranscriptionCheckpoint checkpoint = loadCheckpoint(sourceDigest);
+        if (saveCachedResults(sourceDigest, language)) {
+            removeCheckpoint(checkpoint);
+            return;
+        }
+
+        boolean pipelined = pipelineStage != null && checkpoint != null;
+        // no need for the soundtrack to save a complete transcription
+        boolean transcribed = checkpoint != null
+                && checkpoint.stage == Stage.TRANSCRIBED
+                && checkpoint.rawArchive != null
+                && checkpoint.rawArchive.isFile()
+                && (language == null || language.trim().isEmpty() || language.equals(checkpoint.language));
         Blob audioContent = sourceMedia;
-        if (audioContent.getFilename() == null
-                || !audioContent.getFilename().endsWith(".mp3")) {
+        String soundTrackKey = null;
+        TranscriptionService service = getTranscriptionService();
+        AudioFormat sourceFormat = transcribed ? null
+                : AudioFormat.detect(sourceMedia);
+        if (!transcribed && isPassThrough(service, sourceFormat)) {
+            soundTrackFormat = sourceFormat;
+        } else if (!transcribed) {
             // Convert the soundtrack of the source media as MP3 for submission
             // to the transcription service
             setStatus("soundtrack_extraction");
-            audioContent = extractSoundTrack(sourceMedia);
-        }
-        if (isSuspending()) {
-            return;
+            if (checkpoint != null && checkpoint.soundTrack != null
+                    && checkpoint.soundTrack.isFile()) {
+                log.debug(String.format(
+                        "Resuming the transcription of %s with soundtrack %s",
+                        docLoc, checkpoint.soundTrack));
+                // named by the checkpoint store after its format
+                soundTrackFormat = AudioFormat.forFile(checkpoint.soundTrack);
+                audioContent = new FileBlob(checkpoint.soundTrack,
+                        soundTrackFormat.mimeType);
+                audioContent.setFilename(checkpoint.soundTrack.getName());
+            } else if (sourceFormat != null && sourceFormat.needsRemux()) {
+                soundTrackFormat = AudioFormat.AAC;
+                audioContent = convertSoundTrack(
+                        TranscriptionService.REMUX_AAC_CONVERTER, sourceMedia);
+                audioContent = checkpointSoundTrack(checkpoint, audioContent);
+            } else if (isStreamable(service, sourceMedia, language,
+                    pipelined)) {
+                audioContent = streamSoundTrack(service, sourceMedia);
+            } else if (sourceDigest != null && service != null
+                    && service.getSoundTrackCache().isEnabled()) {
+                String key = SoundTrackCache.makeKey(sourceDigest,
+                        service.getExtractionProfile());
+                audioContent = getCachedSoundTrack(sourceMedia, key);
+                soundTrackKey = key;
+                saveCheckpoint(checkpoint, Stage.EXTRACTED);
+            } else {
+                audioContent = extractSoundTrack(sourceMedia);
+                audioContent = checkpointSoundTrack(checkpoint, audioContent);
+            }
         }
         String detectedLanguage = null;
         Transcription transcription = null;
+        Blob rawArchive = null;
         try {
+            if (isSuspending()) {
+                return;
+            }
+            boolean detect = language == null || language.trim().isEmpty();
+            if (pipelined && pipelineStage == PipelineStage.EXTRACTION) {
+                saveCheckpoint(checkpoint, Stage.EXTRACTED);
+                handOff(detect ? PipelineStage.LANGUAGE_DETECTION
+                        : PipelineStage.TRANSCRIPTION);
+                return;
+            }
             // If the user has not set the language manually, use the service to
             // detect it
-            if (language == null || language.trim().isEmpty()) {
-                setStatus("language_detection");
-                detectedLanguage = detectLanguage(audioContent);
-                language = detectedLanguage;
-                if (isSuspending()) {
-                    return;
+            if (detect) {
+                if (checkpoint != null && checkpoint.detectedLanguage != null) {
+                    detectedLanguage = checkpoint.detectedLanguage;
+                } else {
+                    setStatus("language_detection");
+                    detectedLanguage = detectLanguage(audioContent);
+                    if (isSuspending()) {
+                        return;
+                    }
+                    if (checkpoint != null && detectedLanguage != null) {
+                        checkpoint.detectedLanguage = detectedLanguage;
+                        saveCheckpoint(checkpoint, Stage.LANGUAGE_DETECTED);
+                    }
                 }
+                language = detectedLanguage;
             }
             if (language == null || language.trim().isEmpty()) {
                 log.warn("Could not detect the language for "
                         + sourceMedia.getFilename()
                         + ": skipping transcription.");
+                removeCheckpoint(checkpoint);
                 state = FAILED;
                 return;
             }
+            if (pipelined && pipelineStage == PipelineStage.LANGUAGE_DETECTION) {
+                handOff(PipelineStage.TRANSCRIPTION);
+                return;
+            }
             // Perform the actual transcription
             setStatus("speech_transcription");
-            transcription = performTranscription(audioContent, language);
-            if (transcription == null) {
-                log.warn("Could not find a transcription model for language '"
-                        + language + "' for media: " + sourceMedia.getFilename());
-            }
-            if (isSuspending()) {
+            if (service != null && service.isAsyncMode()) {
+                // Only submit the job: the result will be fetched later on by
+                // a TranscriptionPollWork without holding this thread
+                JobHandle handle;
+                if (checkpoint != null && checkpoint.stage == Stage.SUBMITTED
+                        && language.equals(checkpoint.language)) {
+                    // already submitted before the interruption
+                    handle = new JobHandle(checkpoint.endpointName,
+                            checkpoint.jobId);
+                } else {
+                    handle = submitTranscription(audioContent, language);
+                }
+                if (isSuspending()) {
+                    return;
+                }
+                if (handle == null) {
+                    log.warn("Could not find a transcription model for language '"
+                            + language
+                            + "' for media: "
+                            + sourceMedia.getFilename());
+                    removeCheckpoint(checkpoint);
+                    state = FAILED;
+                } else {
+                    if (checkpoint != null) {
+                        checkpoint.language = language;
+                        checkpoint.endpointName = handle.endpointName;
+                        checkpoint.jobId = handle.jobId;
+                        saveCheckpoint(checkpoint, Stage.SUBMITTED);
+                    }
+                    TranscriptionJob job = new TranscriptionJob(docLoc,
+                            blobPropertyPath, handle.endpointName,
+                            handle.jobId, detectedLanguage, language,
+                            sourceDigest);
+                    // the remote decode keeps the permit of its submission
+                    job.setPermit(heldPermit);
+                    heldPermit = null;
+                    service.registerJob(job);
+                }
                 return;
             }
+            if (transcribed && language.equals(checkpoint.language)) {
+                log.debug("Resuming the transcription of " + docLoc
+                        + " from its raw result");
+                transcription = readRawArchive(checkpoint.rawArchive);
+                rawArchive = new FileBlob(checkpoint.rawArchive,
+                        RawTranscriptionArchive.MIME_TYPE);
+                rawArchive.setFilename(RawTranscriptionArchive.FILENAME);
+            } else {
+                if (service != null && service.isChunkedMode()) {
+                    transcription = performChunkedTranscription(audioContent,
+                            language);
+                } else {
+                    transcription = performTranscription(audioContent,
+                            language);
+                }
+                if (isSuspending()) {
+                    return;
+                }
+                if (transcription == null) {
+                    log.warn("Could not find a transcription model for language '"
+                            + language
+                            + "' for media: "
+                            + sourceMedia.getFilename());
+                } else {
+                    rawArchive = checkpointRawArchive(checkpoint,
+                            makeRawArchive(), language);
+                    if (pipelined && checkpoint.stage == Stage.TRANSCRIBED) {
+                        // the raw archive is kept by the checkpoint
+                        handOff(PipelineStage.SAVING);
+                        return;
+                    }
+                }
+            }
         } finally {
-            if (audioContent != sourceMedia) {
+            deleteRawParts();
+            if (soundTrackKey != null) {
+                // kept for the next attempts
+                getTranscriptionService().getSoundTrackCache().release(
+                        soundTrackKey);
+            } else if (audioContent != sourceMedia
+                    && !isBackedBy(audioContent, checkpoint == null ? null
+                            : checkpoint.soundTrack)) {
+                // checkpointed soundtracks are kept until the end
                 FileUtils.deleteQuietly(getBackingFile(audioContent));
             }
         }
 
         // Save the results back on the document in a new, short-lived
         // transaction
+        try {
+            startTransaction();
+            setStatus("saving_results");
+            saveResults(detectedLanguage, transcription, rawArchive);
+        } finally {
+            if (rawArchive != null
+                    && !isBackedBy(rawArchive, checkpoint == null ? null
+                            : checkpoint.rawArchive)) {
+                FileUtils.deleteQuietly(getBackingFile(rawArchive));
+            }
+        }
+        removeCheckpoint(checkpoint);
+        cacheResults(sourceDigest, language, detectedLanguage, transcription);
+    }
+
+    /**
+     * @return the checkpoint of a previous interrupted attempt on the same
+     *         media, a new checkpoint if there is none, or null if
+     *         checkpoints are disabled
+     */
+    protected TranscriptionCheckpoint loadCheckpoint(String sourceDigest) {
+        TranscriptionService service = getTranscriptionService();
+        CheckpointStore store = service == null ? null
+                : service.getCheckpointStore();
+        if (store == null) {
+            return null;
+        }
+        String docId = docLoc.getDocRef().toString();
+        TranscriptionCheckpoint checkpoint = store.load(CheckpointStore.makeKey(
+                docLoc.getServerName(), docId, blobPropertyPath));
+        if (checkpoint != null) {
+            if (sourceDigest != null
+                    && sourceDigest.equals(checkpoint.sourceDigest)) {
+                log.info("Resuming " + checkpoint);
+                return checkpoint;
+            }
+            // the media changed in the meantime
+            store.remove(checkpoint);
+        }
+        checkpoint = new TranscriptionCheckpoint(docLoc.getServerName(),
+                docId, blobPropertyPath, sourceDigest);
+        checkpoint.category = getCategory();
+        return checkpoint;
+    }
+
+    /**
+     * @return false for the pipeline stages that do not call the service
+     */
+    protected boolean isCallingService() {
+        return pipelineStage != PipelineStage.EXTRACTION
+                && pipelineStage != PipelineStage.SAVING;
+    }
+
+    /**
+     * Schedule the work of the next stage of the pipeline, that resumes from
+     * the checkpoint of this one.
+     */
+    protected void handOff(PipelineStage next) {
+        log.debug(String.format("Handing off the transcription of %s to %s",
+                docLoc, next));
+        getTranscriptionService().schedulePipelineStage(docLoc, category,
+                next);
+    }
+
+    protected void saveCheckpoint(TranscriptionCheckpoint checkpoint,
+            Stage stage) {
+        if (checkpoint == null || checkpoint.isAtLeast(stage)) {
+            return;
+        }
+        checkpoint.stage = stage;
+        try {
+            getTranscriptionService().getCheckpointStore().save(checkpoint);
+        } catch (IOException e) {
+            // only progress would be lost on restart
+            log.warn("Could not save " + checkpoint, e);
+        }
+    }
+
+    protected void removeCheckpoint(TranscriptionCheckpoint checkpoint) {
+        if (checkpoint != null) {
+            getTranscriptionService().getCheckpointStore().remove(checkpoint);
+        }
+    }
+
+    /**
+     * Move the extracted soundtrack to the checkpoint store so that it
+     * survives a restart.
+     *
+     * @return the soundtrack to use for the transcription
+     */
+    protected Blob checkpointSoundTrack(TranscriptionCheckpoint checkpoint,
+            Blob soundTrack) {
+        File extracted = getBackingFile(soundTrack);
+        if (checkpoint == null || extracted == null) {
+            return soundTrack;
+        }
+        AudioFormat format = soundTrackFormat;
+        File file = getTranscriptionService().getCheckpointStore().getFile(
+                checkpoint, format.extension);
+        try {
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(extracted, file);
+        } catch (IOException e) {
+            log.warn("Could not checkpoint the soundtrack of " + docLoc, e);
+            return soundTrack;
+        }
+        checkpoint.soundTrack = file;
+        saveCheckpoint(checkpoint, Stage.EXTRACTED);
+        Blob blob = new FileBlob(file, format.mimeType);
+        blob.setFilename(file.getName());
+        return blob;
+    }
+
+    /**
+     * Move the raw archive of the complete transcription to the checkpoint
+     * store so that a restart before the results are saved does not call the
+     * service again. Without raw archive there is no such checkpoint.
+     *
+     * @return the raw archive to save on the document
+     */
+    protected Blob checkpointRawArchive(TranscriptionCheckpoint checkpoint,
+            Blob rawArchive, String language) {
+        if (checkpoint == null || rawArchive == null) {
+            return rawArchive;
+        }
+        File file = getTranscriptionService().getCheckpointStore().getFile(
+                checkpoint, ".zip");
+        try {
+            FileUtils.deleteQuietly(file);
+            FileUtils.moveFile(getBackingFile(rawArchive), file);
+        } catch (IOException e) {
+            log.warn("Could not checkpoint the transcription of " + docLoc, e);
+            return rawArchive;
+        }
+        checkpoint.rawArchive = file;
+        checkpoint.language = language;
+        saveCheckpoint(checkpoint, Stage.TRANSCRIBED);
+        Blob blob = new FileBlob(file, RawTranscriptionArchive.MIME_TYPE);
+        blob.setFilename(RawTranscriptionArchive.FILENAME);
+        return blob;
+    }
+
+    protected boolean isBackedBy(Blob blob, File file) {
+        return file != null && file.equals(getBackingFile(blob));
+    }
+
+    protected Transcription readRawArchive(File file) throws IOException,
+            XMLStreamException {
+        InputStream stream = new FileInputStream(file);
+        try {
+            return RawTranscriptionArchive.readTranscription(stream,
+                    Segment.MAX_SEGMENT_DURATION);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * @return a temporary copy for the raw payload of the next call or null
+     *         if raw payloads are not stored
+     */
+    protected RawCopy openRawCopy() {
+        TranscriptionService service = getTranscriptionService();
+        if (service == null || !service.isRawStorageEnabled()) {
+            return null;
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("vocapia-raw-", ".xml");
+            return new RawCopy(file, new BufferedOutputStream(
+                    new FileOutputStream(file)));
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            log.warn("Could not keep the raw transcription of " + docLoc, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param offset position of the transcribed part in the media in seconds
+     * @param keep whether the payload was received completely
+     */
+    protected void closeRawCopy(RawCopy copy, double offset, boolean keep) {
+        if (copy == null) {
+            return;
+        }
+        try {
+            copy.out.close();
+        } catch (IOException e) {
+            log.warn("Could not keep the raw transcription of " + docLoc, e);
+            keep = false;
+        }
+        if (keep) {
+            rawParts.add(new Part(offset, copy.file));
+        } else {
+            FileUtils.deleteQuietly(copy.file);
+        }
+    }
+
+    /**
+     * @return the archive of the raw payloads received for the current
+     *         transcription or null if there are none
+     */
+    protected Blob makeRawArchive() {
+        List<Part> parts;
+        synchronized (rawParts) {
+            if (rawParts.isEmpty()) {
+                return null;
+            }
+            parts = new ArrayList<Part>(rawParts);
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("vocapia-raw-", ".zip");
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    file));
+            try {
+                RawTranscriptionArchive.write(parts, out);
+            } finally {
+                out.close();
+            }
+            Blob archive = new FileBlob(file, RawTranscriptionArchive.MIME_TYPE);
+            archive.setFilename(RawTranscriptionArchive.FILENAME);
+            return archive;
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(file);
+            log.warn("Could not archive the raw transcription of " + docLoc,
+                    e);
+            return null;
+        }
+    }
+
+    protected void deleteRawParts() {
+        synchronized (rawParts) {
+            for (Part part : rawParts) {
+                FileUtils.deleteQuietly(part.file);
+            }
+            rawParts.clear();
+        }
+    }
+
+    /**
+     * @return the digest of the blob, computed if the blob does not have one,
+     *         or null if it cannot be read
+     */
+    protected String getDigest(Blob blob) {
+        String digest = blob.getDigest();
+        if (digest != null) {
+            return digest;
+        }
+        try {
+            InputStream stream = blob.getStream();
+            try {
+                return DigestUtils.md5Hex(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not compute the digest of " + blob.getFilename(),
+                    e);
+            return null;
+        }
+    }
+
+    /**
+     * Copy the results of a previous transcription of the same content, if
+     * any, onto the document. The results are looked up in the cache of the
+     * node, then on the documents of the repository with the same
+     * trans:source_digest, transcribed by any node.
+     *
+     * @param language the language set on the document, null or empty if it
+     *            is to be detected
+     * @return true if cached results were found and saved
+     */
+    protected boolean saveCachedResults(String sourceDigest, String language)
+            throws ClientException {
+        TranscriptionService service = getTranscriptionService();
+        if (service == null || sourceDigest == null
+                || !service.getResultCache().isEnabled()) {
+            return false;
+        }
+        boolean detect = language == null || language.trim().isEmpty();
+        String key = detect ? TranscriptionCache.makeKey(sourceDigest,
+                TranscriptionCache.AUTO_LANGUAGE, null)
+                : TranscriptionCache.makeKey(sourceDigest, language,
+                        shortToLongLangCodes.get(language));
+        TranscriptionCache.Entry entry = service.getResultCache().get(key);
+        Blob rawArchive = null;
         startTransaction();
-        setStatus("saving_results");
-        saveResults(detectedLanguage, transcription);
+        try {
+            if (entry == null) {
+                Object[] transcribed = findTranscribedDocument(sourceDigest,
+                        detect ? null : language);
+                if (transcribed == null) {
+                    return false;
+                }
+                String transcribedLanguage = (String) transcribed[0];
+                entry = new TranscriptionCache.Entry(transcribedLanguage,
+                        (Transcription) transcribed[1]);
+                rawArchive = (Blob) transcribed[2];
+                cacheResults(sourceDigest, transcribedLanguage,
+                        detect ? transcribedLanguage : null,
+                        entry.transcription);
+            }
+            log.debug(String.format(
+                    "Reusing the cached transcription of %s for %s",
+                    sourceDigest, docLoc));
+            setStatus("saving_results");
+            saveResults(detect ? entry.detectedLanguage : null,
+                    entry.transcription, rawArchive);
+            return true;
+        } finally {
+            commitOrRollbackTransaction();
+        }
+    }
+
+    /**
+     * @param language the language the document must have been transcribed
+     *            in, null for any
+     * @return the language, transcription and raw archive of another
+     *         document transcribed from the same content, or null
+     */
+    protected Object[] findTranscribedDocument(final String sourceDigest,
+            final String language) throws ClientException {
+        final Object[][] found = new Object[1][];
+        final String docId = docLoc.getDocRef().toString();
+        new UnrestrictedSessionRunner(docLoc.getServerName()) {
+            @Override
+            public void run() throws ClientException {
+                String query = String.format(
+                        "SELECT * FROM Document WHERE ecm:mixinType = '%s'"
+                                + " AND %s = '%s' AND ecm:isProxy = 0"
+                                + " AND ecm:uuid <> '%s'",
+                        HAS_SPEECH_TRANSCRIPTION, TRANS_SOURCE_DIGEST,
+                        sourceDigest, docId);
+                for (DocumentModel doc : session.query(query, null,
+                        MAX_TRANSCRIBED_DOCUMENTS, 0, false)) {
+                    // the language is not in the query as it is set by users
+                    if (language == null
+                            || language.equals(doc.getPropertyValue(DC_LANGUAGE))) {
+                        found[0] = new Object[] {
+                                doc.getPropertyValue(DC_LANGUAGE),
+                                Transcription.fromTranscribedDocument(doc),
+                                doc.getPropertyValue(TRANS_RAW) };
+                        return;
+                    }
+                }
+            }
+        }.runUnrestricted();
+        return found[0];
+    }
+
+    /**
+     * @param language the language used for the transcription
+     * @param detectedLanguage the language detected by the service, null if
+     *            the language was set on the document
+     */
+    protected void cacheResults(String sourceDigest, String language,
+            String detectedLanguage, Transcription transcription) {
+        TranscriptionService service = getTranscriptionService();
+        if (service == null || sourceDigest == null || transcription == null
+                || language == null) {
+            return;
+        }
+        TranscriptionCache cache = service.getResultCache();
+        TranscriptionCache.Entry entry = new TranscriptionCache.Entry(
+                detectedLanguage, transcription);
+        cache.put(TranscriptionCache.makeKey(sourceDigest, language,
+                shortToLongLangCodes.get(language)), entry);
+        if (detectedLanguage != null) {
+            cache.put(TranscriptionCache.makeKey(sourceDigest,
+                    TranscriptionCache.AUTO_LANGUAGE, null), entry);
+        }
     }
 
     protected Object[] getSourceDocumentLanguageAndMedia()
@@ -190,19 +878,129 @@ public class TranscriptionWork extends AbstractWork {
         return returnValues;
     }
 
+    /**
+     * Media in an audio format accepted by the service are uploaded as is,
+     * except the lossless ones in the speech profile as the re-encoded
+     * soundtrack is many times smaller.
+     */
+    protected boolean isPassThrough(TranscriptionService service,
+            AudioFormat format) {
+        if (format == null || format.needsRemux()) {
+            return false;
+        }
+        if (format.lossless && service != null
+                && TranscriptionService.EXTRACTION_PROFILE_SPEECH.equals(service.getExtractionProfile())) {
+            return false;
+        }
+        log.debug(String.format("Uploading %s as is (%s)", docLoc, format));
+        return true;
+    }
+
     protected Blob extractSoundTrack(Blob sourceMedia) throws IOException,
             ClientException {
+        TranscriptionService service = getTranscriptionService();
+        String converterName = service != null ? service.getExtractionConverterName()
+                : TranscriptionService.DEFAULT_EXTRACTION_CONVERTER;
+        Blob soundTrack = convertSoundTrack(converterName, sourceMedia);
+        long sourceLength = sourceMedia.getLength();
+        long uploadLength = soundTrack.getLength();
+        if (sourceLength >= 0 && uploadLength >= 0) {
+            log.info(String.format(
+                    "Extracted soundtrack of %s with %s: %d bytes to upload out of %d bytes of source media",
+                    docLoc, converterName, uploadLength, sourceLength));
+            if (service != null) {
+                service.recordSourceBytesNotUploaded(sourceLength
+                        - uploadLength);
+            }
+        }
+        return soundTrack;
+    }
+
+    protected Blob convertSoundTrack(String converterName, Blob sourceMedia)
+            throws IOException, ClientException {
         ConversionService conversionService = Framework.getLocalService(ConversionService.class);
         Map<String, Serializable> parameters = new HashMap<String, Serializable>();
         BlobHolder blobHolder = new SimpleBlobHolder(sourceMedia);
-        BlobHolder result = conversionService.convert("extractSoundAsMp3",
+        BlobHolder result = conversionService.convert(converterName,
                 blobHolder, parameters);
         return result.getBlob().persist();
     }
 
-    protected String detectLanguage(Blob mediaContent) {
-        AudioDoc result = callService("vrbs_lid", null, mediaContent);
-        String longLanguage = result.getLanguage();
+    /**
+     * The soundtrack can be encoded while uploaded when it is only read once:
+     * language detection and chunked transcription need it on disk.
+     */
+    protected boolean isStreamable(TranscriptionService service,
+            Blob sourceMedia, String language, boolean pipelined) {
+        return service != null && service.isStreamingExtraction()
+                && !pipelined && !service.isChunkedMode()
+                && language != null && !language.trim().isEmpty()
+                && getBackingFile(sourceMedia) != null;
+    }
+
+    protected Blob streamSoundTrack(TranscriptionService service,
+            Blob sourceMedia) {
+        String commandName = SoundTrackPipe.SPEECH_COMMAND;
+        if (TranscriptionService.EXTRACTION_PROFILE_DEFAULT.equals(service.getExtractionProfile())) {
+            commandName = SoundTrackPipe.DEFAULT_COMMAND;
+        }
+        Blob soundTrack = new StreamingBlob(new SoundTrackPipe(
+                getBackingFile(sourceMedia), commandName),
+                Mp3Extractor.MP3_MIMETYPE);
+        String filename = sourceMedia.getFilename();
+        soundTrack.setFilename((filename == null ? "soundtrack"
+                : FilenameUtils.getBaseName(filename)) + ".mp3");
+        log.debug(String.format(
+                "Streaming the soundtrack of %s to the transcription service",
+                docLoc));
+        return soundTrack;
+    }
+
+    /**
+     * Reuse the soundtrack extracted by a previous work or extract it and
+     * keep it in the cache.
+     *
+     * @return the cached soundtrack, to be released once the work is done
+     *         with it
+     */
+    protected Blob getCachedSoundTrack(Blob sourceMedia, String key)
+            throws IOException, ClientException {
+        SoundTrackCache cache = getTranscriptionService().getSoundTrackCache();
+        File cached = cache.acquire(key);
+        if (cached != null) {
+            log.debug(String.format("Reusing extracted soundtrack %s for %s",
+                    cached, docLoc));
+        } else {
+            Blob soundTrack = extractSoundTrack(sourceMedia);
+            File extracted = getBackingFile(soundTrack);
+            if (extracted == null) {
+                extracted = File.createTempFile("vocapia-soundtrack-", ".mp3");
+                soundTrack.transferTo(extracted);
+            }
+            cached = cache.store(key, extracted);
+        }
+        Blob blob = new FileBlob(cached, Mp3Extractor.MP3_MIMETYPE);
+        blob.setFilename(cached.getName());
+        return blob;
+    }
+
+    protected String detectLanguage(final Blob mediaContent)
+            throws InterruptedException {
+        String longLanguage = null;
+        TranscriptionService service = getTranscriptionService();
+        File soundTrack = getBackingFile(mediaContent);
+        if (service != null && service.getLidExcerptCount() > 0
+                && soundTrack != null) {
+            longLanguage = detectLanguageOnExcerpts(soundTrack,
+                    service.getLidExcerptCount(),
+                    service.getLidExcerptDuration() / 1000.0);
+            if (isSuspending()) {
+                return null;
+            }
+        }
+        if (longLanguage == null) {
+            longLanguage = detectLongLanguage(mediaContent);
+        }
         if (longLanguage == null) {
             log.warn("Failed to detect a language on: "
                     + mediaContent.getFilename());
@@ -216,79 +1014,440 @@ public class TranscriptionWork extends AbstractWork {
         return longToShortLangCodes.get(longLanguage);
     }
 
-    protected Transcription performTranscription(Blob mediaContent,
-            String language) {
-        String modelName = shortToLongLangCodes.get(language);
-        if (modelName == null) {
+    protected String detectLongLanguage(final Blob mediaContent)
+            throws InterruptedException {
+        return callWithRetries(new ServiceCall<String>() {
+            @Override
+            public String call() {
+                LanguageDetector detector = new LanguageDetector();
+                callService("vrbs_lid", null, mediaContent, detector);
+                return detector.getLanguage();
+            }
+        });
+    }
+
+    /**
+     * Run the language detection on a few short excerpts of speech instead of
+     * uploading the full soundtrack.
+     *
+     * @return the language detected on a strict majority of the excerpts or
+     *         null if there is no such agreement or the soundtrack is too
+     *         short to be sampled
+     */
+    protected String detectLanguageOnExcerpts(File soundTrack, int count,
+            double excerptDuration) throws InterruptedException {
+        List<Chunk> excerpts = new SilenceSplitter(soundTrackFormat).extractExcerpts(
+                soundTrack, count, excerptDuration);
+        if (excerpts.isEmpty()) {
             return null;
         }
-        AudioDoc result = callService("vrbs_trans", modelName, mediaContent);
-        return result.asTranscription();
+        List<String> votes = new ArrayList<String>();
+        try {
+            for (Chunk excerpt : excerpts) {
+                try {
+                    votes.add(detectLongLanguage(new FileBlob(excerpt.file,
+                            soundTrackFormat.mimeType)));
+                } catch (VocapiaServiceException e) {
+                    log.warn(String.format(
+                            "Language detection failed on excerpt at %.1fs of %s: %s",
+                            excerpt.offset, docLoc, e.getMessage()));
+                    votes.add(null);
+                }
+                if (isSuspending()) {
+                    return null;
+                }
+            }
+        } finally {
+            for (Chunk excerpt : excerpts) {
+                FileUtils.deleteQuietly(excerpt.file);
+            }
+        }
+        String language = getMajorityLanguage(votes);
+        if (language == null) {
+            log.info(String.format(
+                    "No agreement on the language of %s in excerpts %s: using the full soundtrack",
+                    docLoc, votes));
+        }
+        return language;
     }
 
-    protected AudioDoc callService(String method, String model,
-            Blob audioContent) {
-        String url = String.format("%s?method=%s&audiofile=soundtrack.mp3",
-                serviceUrl, method);
-        if (model != null) {
-            url += String.format("&model=%s", model);
+    /**
+     * @return the language voted for by strictly more than half of the
+     *         voters, null votes included, or null if there is none
+     */
+    public static String getMajorityLanguage(List<String> votes) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String vote : votes) {
+            if (vote == null) {
+                continue;
+            }
+            Integer count = counts.get(vote);
+            int newCount = count == null ? 1 : count.intValue() + 1;
+            if (2 * newCount > votes.size()) {
+                return vote;
+            }
+            counts.put(vote, Integer.valueOf(newCount));
         }
-        HttpPut request = new HttpPut(url);
-        request.getParams().setBooleanParameter(
-                "http.protocol.expect-continue", true);
+        return null;
+    }
 
+    protected Transcription performTranscription(final Blob mediaContent,
+            String language) throws InterruptedException {
+        final String modelName = shortToLongLangCodes.get(language);
+        if (modelName == null) {
+            return null;
+        }
+        return callWithRetries(new ServiceCall<Transcription>() {
+            @Override
+            public Transcription call() {
+                // start from scratch on each attempt
+                TranscriptionBuilder builder = new TranscriptionBuilder();
+                RawCopy rawCopy = openRawCopy();
+                boolean received = false;
+                try {
+                    callService("vrbs_trans", modelName, mediaContent,
+                            builder, rawCopy == null ? null : rawCopy.out);
+                    received = true;
+                } finally {
+                    closeRawCopy(rawCopy, 0, received);
+                }
+                return builder.getTranscription();
+            }
+        });
+    }
+
+    /**
+     * Split the soundtrack at silence boundaries and transcribe the chunks
+     * concurrently, possibly on different endpoints. The segments are shifted
+     * by the position of their chunk and merged in order. Speaker ids are
+     * assigned per chunk by the service.
+     *
+     * Falls back to {@link #performTranscription(Blob, String)} for short
+     * soundtracks or if the soundtrack cannot be split.
+     */
+    protected Transcription performChunkedTranscription(Blob mediaContent,
+            String language) throws InterruptedException {
+        final String modelName = shortToLongLangCodes.get(language);
+        if (modelName == null) {
+            return null;
+        }
+        TranscriptionService service = getTranscriptionService();
+        File soundTrack = getBackingFile(mediaContent);
+        List<Chunk> chunks = Collections.emptyList();
+        if (soundTrack != null) {
+            chunks = new SilenceSplitter(soundTrackFormat).split(soundTrack,
+                    service.getChunkDuration() / 1000.0);
+        }
+        if (chunks.isEmpty()) {
+            return performTranscription(mediaContent, language);
+        }
+        List<Future<List<Segment>>> futures = new ArrayList<Future<List<Segment>>>();
         try {
-            if (username != null && password != null) {
-                String credentials = Base64.encodeBase64String((username + ":" + password).getBytes(Charset.forName("UTF-8")));
-                // trim is necessary to remove the trailing CRLF appended by
-                // Base64.encodeBase64String for some reason...
-                request.setHeader("Authorization",
-                        "Basic " + credentials.trim());
-            }
-            request.setHeader("Accept", "*/*");
-            request.setHeader("Content-Type", audioContent.getMimeType());
-            request.setEntity(new ByteArrayEntity(audioContent.getByteArray()));
-            HttpResponse response = httpClient.execute(request);
-            InputStream content = response.getEntity().getContent();
-            String body = IOUtils.toString(content);
-            content.close();
-            if (response.getStatusLine().getStatusCode() == 200) {
+            for (final Chunk chunk : chunks) {
+                futures.add(service.getChunkExecutor().submit(
+                        new Callable<List<Segment>>() {
+                            @Override
+                            public List<Segment> call() throws Exception {
+                                return transcribeChunk(chunk, modelName);
+                            }
+                        }));
+            }
+            TranscriptionBuilder builder = new TranscriptionBuilder();
+            int done = 0;
+            for (Future<List<Segment>> future : futures) {
+                List<Segment> segments = future.get();
+                if (segments == null) {
+                    // suspending
+                    return null;
+                }
+                for (Segment segment : segments) {
+                    builder.handleSegment(segment);
+                }
+                setProgress(new Progress(++done, chunks.size()));
+            }
+            log.debug(String.format("Transcribed %s in %d chunks", docLoc,
+                    chunks.size()));
+            return builder.getTranscription();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            for (Future<List<Segment>> future : futures) {
+                future.cancel(true);
+            }
+            for (Chunk chunk : chunks) {
+                FileUtils.deleteQuietly(chunk.file);
+            }
+        }
+    }
+
+    protected List<Segment> transcribeChunk(final Chunk chunk,
+            final String modelName) throws InterruptedException {
+        final Blob chunkContent = new FileBlob(chunk.file,
+                soundTrackFormat.mimeType);
+        return callWithRetries(new ServiceCall<List<Segment>>() {
+            @Override
+            public List<Segment> call() {
+                // start from scratch on each attempt
+                SegmentCollector collector = new SegmentCollector(chunk.offset);
+                RawCopy rawCopy = openRawCopy();
+                boolean received = false;
                 try {
-                    return AudioDoc.readFrom(body);
-                } catch (UnmarshalException e) {
-                    String errorMsg = String.format(
-                            "Invalid response from '%s': %s\n %s", url,
-                            response.getStatusLine().toString(), body);
-                    throw new IOException(errorMsg);
+                    callService("vrbs_trans", modelName, chunkContent,
+                            collector, rawCopy == null ? null : rawCopy.out);
+                    received = true;
+                } finally {
+                    closeRawCopy(rawCopy, chunk.offset, received);
+                }
+                return collector.getSegments();
+            }
+        });
+    }
+
+    /**
+     * Submit the transcription job to the service without waiting for its
+     * completion. The permit of the submission is kept in {@link #heldPermit}
+     * to be handed over to the registered job. Waits for the jobs resumed
+     * after a restart to hold their permit first.
+     *
+     * @return the handle on the remote job or null if the language is not
+     *         supported or if the work is being suspended.
+     */
+    protected JobHandle submitTranscription(final Blob mediaContent,
+            String language) throws InterruptedException {
+        final String modelName = shortToLongLangCodes.get(language);
+        if (modelName == null) {
+            return null;
+        }
+        TranscriptionService service = getTranscriptionService();
+        final String asyncParameters = service.getAsyncSubmitParameters();
+        if (service.hasJobsWithoutPermit()) {
+            String previousStatus = getStatus();
+            setStatus("waiting_for_permit");
+            while (service.hasJobsWithoutPermit()) {
+                if (!sleepUnlessSuspending(PERMIT_CHECK_DELAY)) {
+                    return null;
                 }
-            } else {
-                String errorMsg = String.format(
-                        "Unexpected response from '%s': %s\n %s", url,
-                        response.getStatusLine().toString(), body);
-                throw new IOException(errorMsg);
             }
-        } catch (Exception e) {
-            request.abort();
-            throw new RuntimeException(String.format(
-                    "Error connecting to '%s': %s", url, e.getMessage()), e);
+            setStatus(previousStatus);
+        }
+        holdPermit = true;
+        try {
+            return callWithRetries(new ServiceCall<JobHandle>() {
+                @Override
+                public JobHandle call() {
+                    return client.submitTranscription(modelName, mediaContent,
+                            asyncParameters);
+                }
+            });
+        } finally {
+            holdPermit = false;
         }
     }
 
-    protected File getBackingFile(Blob audioContent) {
-        // Delete temporary extracted file
-        if (audioContent instanceof StreamingBlob) {
-            StreamSource source = ((StreamingBlob) audioContent).getStreamSource();
-            if (source instanceof FileSource) {
-                return ((FileSource) source).getFile();
+    /**
+     * A call to the Vocapia service that can safely be attempted several
+     * times: the media to upload is kept until the last attempt.
+     */
+    protected interface ServiceCall<T> {
+
+        T call();
+
+    }
+
+    /**
+     * Perform the call, retrying transient failures with exponential backoff
+     * and honoring the service wide circuit breaker and the cluster wide
+     * limit on concurrent calls.
+     *
+     * @return the result of the call or null if the work is being suspended
+     */
+    protected <T> T callWithRetries(ServiceCall<T> call)
+            throws InterruptedException {
+        TranscriptionService service = getTranscriptionService();
+        if (service == null) {
+            return call.call();
+        }
+        CircuitBreaker breaker = service.getCircuitBreaker();
+        ConcurrencyLimiter limiter = service.getConcurrencyLimiter();
+        RetryPolicy retryPolicy = service.getRetryPolicy();
+        int retry = 0;
+        while (true) {
+            while (!breaker.allowRequest()) {
+                if (!sleepUnlessSuspending(CIRCUIT_BREAKER_CHECK_DELAY)) {
+                    return null;
+                }
+            }
+            boolean recorded = false;
+            Permit permit = null;
+            try {
+                if (limiter != null) {
+                    permit = awaitPermit(limiter);
+                    if (permit == null) {
+                        return null;
+                    }
+                }
+                T result = call.call();
+                breaker.recordSuccess();
+                recorded = true;
+                if (holdPermit) {
+                    heldPermit = permit;
+                    permit = null;
+                }
+                return result;
+            } catch (VocapiaServiceException e) {
+                if (!e.isRetryable()) {
+                    // the backend did answer: it is not a health issue
+                    breaker.recordSuccess();
+                    recorded = true;
+                    throw e;
+                }
+                breaker.recordFailure();
+                recorded = true;
+                if (retry >= retryPolicy.getMaxRetries()) {
+                    throw e;
+                }
+                long delay = retryPolicy.getDelay(retry++);
+                log.warn(String.format(
+                        "Transient failure of the transcription service for %s, retry %d/%d in %d ms: %s",
+                        docLoc, retry, retryPolicy.getMaxRetries(), delay,
+                        e.getMessage()));
+                if (!sleepUnlessSuspending(delay)) {
+                    return null;
+                }
+            } finally {
+                if (permit != null) {
+                    limiter.release(permit);
+                }
+                if (!recorded) {
+                    // unexpected local failure: do not block the trial call
+                    // of a half-open circuit
+                    breaker.cancelRequest();
+                }
             }
-        } else if (audioContent instanceof FileBlob) {
-            return ((FileBlob) audioContent).getFile();
         }
-        return null;
+    }
+
+    /**
+     * Wait for one of the permits shared by the nodes of the cluster.
+     *
+     * @return the permit or null if the work is being suspended
+     */
+    protected Permit awaitPermit(ConcurrencyLimiter limiter)
+            throws InterruptedException {
+        String previousStatus = getStatus();
+        try {
+            while (true) {
+                Permit permit = limiter.acquire(PERMIT_CHECK_DELAY);
+                if (permit != null || isSuspending()) {
+                    return permit;
+                }
+                setStatus("waiting_for_permit");
+            }
+        } finally {
+            setStatus(previousStatus);
+        }
+    }
+
+    /**
+     * Wait while the circuit breaker rejects calls to the backend.
+     *
+     * @return false if the work is being suspended
+     */
+    protected boolean awaitServiceAvailability() throws InterruptedException {
+        TranscriptionService service = getTranscriptionService();
+        if (service == null) {
+            return true;
+        }
+        CircuitBreaker breaker = service.getCircuitBreaker();
+        if (breaker.isOpen()) {
+            setStatus("waiting_for_service");
+            while (breaker.isOpen()) {
+                if (!sleepUnlessSuspending(CIRCUIT_BREAKER_CHECK_DELAY)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the work started suspending before the end of the
+     *         delay
+     */
+    protected boolean sleepUnlessSuspending(long delay)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + delay;
+        long remaining = delay;
+        while (remaining > 0) {
+            if (isSuspending()) {
+                return false;
+            }
+            Thread.sleep(Math.min(remaining, 1000));
+            remaining = end - System.currentTimeMillis();
+        }
+        return !isSuspending();
+    }
+
+    /**
+     * Fetch the result of a job submitted with
+     * {@link #submitTranscription(Blob, String)}.
+     *
+     * @return false if the job is still being processed by the service
+     */
+    protected boolean fetchJobResult(TranscriptionJob job,
+            SegmentHandler handler) {
+        RawCopy rawCopy = openRawCopy();
+        boolean complete = false;
+        try {
+            complete = client.fetchJobResult(job.endpointName, job.jobId,
+                    getTranscriptionService().getAsyncResultMethod(),
+                    handler, rawCopy == null ? null : rawCopy.out);
+            return complete;
+        } finally {
+            closeRawCopy(rawCopy, 0, complete);
+        }
+    }
+
+    protected void callService(String method, String model,
+            Blob audioContent, SegmentHandler handler) {
+        callService(method, model, audioContent, handler, null);
+    }
+
+    protected void callService(String method, String model,
+            Blob audioContent, SegmentHandler handler, OutputStream rawCopy) {
+        client.callService(method, model, audioContent, handler, rawCopy);
+    }
+
+    protected TranscriptionService getTranscriptionService() {
+        return Framework.getLocalService(TranscriptionService.class);
+    }
+
+    protected File getBackingFile(Blob audioContent) {
+        return VocapiaClient.getBackingFile(audioContent);
     }
 
     protected void saveResults(final String detectedLanguage,
             final Transcription transcription) throws ClientException {
+        saveResults(detectedLanguage, transcription, null);
+    }
+
+    /**
+     * @param rawArchive the archive of the raw service payloads the
+     *            transcription was built from. Without archive, e.g. for
+     *            cached results, a previous one is kept if it was built from
+     *            the same media and removed otherwise as it would no longer
+     *            match the sections.
+     */
+    protected void saveResults(final String detectedLanguage,
+            final Transcription transcription, final Blob rawArchive)
+            throws ClientException {
         final DocumentRef docRef = docLoc.getDocRef();
         String repositoryName = docLoc.getServerName();
         new UnrestrictedSessionRunner(repositoryName) {
@@ -303,8 +1462,15 @@ public class TranscriptionWork extends AbstractWork {
                         if (!doc.hasFacet(HAS_SPEECH_TRANSCRIPTION)) {
                             doc.addFacet(HAS_SPEECH_TRANSCRIPTION);
                         }
-                        doc.setPropertyValue(TRANS_SECTIONS,
-                                transcription.getSections());
+                        TranscriptionService service = getTranscriptionService();
+                        transcription.updateDocument(doc, service != null
+                                && service.isCompactSections());
+                        if (rawArchive != null
+                                || mediaDigest == null
+                                || !mediaDigest.equals(doc.getPropertyValue(TRANS_SOURCE_DIGEST))) {
+                            doc.setPropertyValue(TRANS_RAW, rawArchive);
+                        }
+                        doc.setPropertyValue(TRANS_SOURCE_DIGEST, mediaDigest);
 
                         // Temporary fix to make it possible to do a semantic
                         // analysis of the transcription.
@@ -367,6 +1533,8 @@ public class TranscriptionWork extends AbstractWork {
                 * result
                 + ((blobPropertyPath == null) ? 0 : blobPropertyPath.hashCode());
         result = prime * result + ((docLoc == null) ? 0 : docLoc.hashCode());
+        result = prime * result
+                + ((pipelineStage == null) ? 0 : pipelineStage.hashCode());
         return result;
     }
 
@@ -389,6 +1557,8 @@ public class TranscriptionWork extends AbstractWork {
                 return false;
         } else if (!docLoc.equals(other.docLoc))
             return false;
+        if (pipelineStage != other.pipelineStage)
+            return false;
         return true;
     }
 
@@ -0,0 +1,436 @@
+package org.nuxeo.vocapia.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.util.EntityUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StreamingBlob;
+import org.nuxeo.runtime.services.streaming.FileSource;
+import org.nuxeo.runtime.services.streaming.StreamSource;
+import org.nuxeo.vocapia.converter.AudioFormat;
+import org.nuxeo.vocapia.service.xml.AudioDocReader;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.SegmentHandler;
+
+/**
+ * HTTP client for a set of Vocapia decoding servers.
+ *
+ * Each request is routed to the available endpoint with the least outstanding
+ * requests relative to its weight. Endpoints that cannot be reached or that
+ * report being unavailable are taken out of rotation for a quarantine period
+ * or until a health check succeeds.
+ */
+public class VocapiaClient {
+
+    private static final Log log = LogFactory.getLog(VocapiaClient.class);
+
+    public static final int HEALTH_CHECK_TIMEOUT = 10 * 1000;
+
+    /**
+     * Handle on a job submitted in asynchronous mode: the result has to be
+     * fetched from the same endpoint.
+     */
+    public static class JobHandle {
+
+        public final String endpointName;
+
+        public final String jobId;
+
+        public JobHandle(String endpointName, String jobId) {
+            this.endpointName = endpointName;
+            this.jobId = jobId;
+        }
+    }
+
+    protected final HttpClient httpClient;
+
+    protected final List<VocapiaEndpoint> endpoints;
+
+    protected final int maxFailures;
+
+    protected final long quarantineDuration;
+
+    protected final AtomicInteger roundRobin = new AtomicInteger();
+
+    public VocapiaClient(HttpClient httpClient,
+            List<VocapiaEndpoint> endpoints, int maxFailures,
+            long quarantineDuration) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "At least one Vocapia endpoint is required");
+        }
+        this.httpClient = httpClient;
+        this.endpoints = Collections.unmodifiableList(new ArrayList<VocapiaEndpoint>(
+                endpoints));
+        this.maxFailures = maxFailures;
+        this.quarantineDuration = quarantineDuration;
+    }
+
+    public List<VocapiaEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public VocapiaEndpoint getEndpoint(String name) {
+        for (VocapiaEndpoint endpoint : endpoints) {
+            if (endpoint.getName().equals(name)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Select the available endpoint with the lowest load and count the
+     * request as outstanding on it. The caller must call
+     * {@link #releaseEndpoint(VocapiaEndpoint)} once done.
+     */
+    protected VocapiaEndpoint acquireEndpoint() {
+        long now = System.currentTimeMillis();
+        int size = endpoints.size();
+        // rotate the starting point to spread ties evenly
+        int start = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % size;
+        VocapiaEndpoint selected = null;
+        double selectedLoad = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            VocapiaEndpoint endpoint = endpoints.get((start + i) % size);
+            if (!endpoint.isAvailable(now)) {
+                continue;
+            }
+            double load = endpoint.getLoad();
+            if (load < selectedLoad) {
+                selected = endpoint;
+                selectedLoad = load;
+            }
+        }
+        if (selected == null) {
+            // All endpoints are out of rotation: rather try the first one to
+            // come back than failing right away
+            for (VocapiaEndpoint endpoint : endpoints) {
+                if (selected == null
+                        || endpoint.unavailableUntil < selected.unavailableUntil) {
+                    selected = endpoint;
+                }
+            }
+        }
+        selected.outstandingRequests.incrementAndGet();
+        return selected;
+    }
+
+    protected void releaseEndpoint(VocapiaEndpoint endpoint) {
+        endpoint.outstandingRequests.decrementAndGet();
+    }
+
+    /**
+     * Upload the media content to the service and stream the resulting
+     * AudioDoc payload to the handler without buffering it.
+     */
+    public void callService(String method, String model, Blob audioContent,
+            SegmentHandler handler) {
+        callService(method, model, audioContent, handler, null);
+    }
+
+    /**
+     * Same as {@link #callService(String, String, Blob, SegmentHandler)} but
+     * also copy the raw AudioDoc payload to the given stream if not null.
+     */
+    public void callService(String method, String model, Blob audioContent,
+            SegmentHandler handler, OutputStream rawCopy) {
+        VocapiaEndpoint endpoint = acquireEndpoint();
+        String url = makeUploadUrl(endpoint, method, model, audioContent);
+        HttpPut request = new HttpPut(url);
+        request.getParams().setBooleanParameter(
+                "http.protocol.expect-continue", true);
+        try {
+            request.setEntity(makeRequestEntity(audioContent));
+            HttpResponse response = execute(endpoint, request);
+            readResponse(url, response, handler, rawCopy);
+        } catch (Exception e) {
+            request.abort();
+            throw wrap(url, e);
+        } finally {
+            releaseEndpoint(endpoint);
+        }
+    }
+
+    /**
+     * Submit a transcription job without waiting for its completion.
+     */
+    public JobHandle submitTranscription(String model, Blob audioContent,
+            String asyncParameters) {
+        VocapiaEndpoint endpoint = acquireEndpoint();
+        String url = makeUploadUrl(endpoint, "vrbs_trans", model,
+                audioContent);
+        if (asyncParameters != null && !asyncParameters.isEmpty()) {
+            url += "&" + asyncParameters;
+        }
+        HttpPut request = new HttpPut(url);
+        request.getParams().setBooleanParameter(
+                "http.protocol.expect-continue", true);
+        try {
+            request.setEntity(makeRequestEntity(audioContent));
+            HttpResponse response = execute(endpoint, request);
+            String body = EntityUtils.toString(response.getEntity(), "UTF-8");
+            int code = response.getStatusLine().getStatusCode();
+            if (code < 200 || code >= 300) {
+                throw new VocapiaServiceException(String.format(
+                        "Unexpected response from '%s': %s\n %s", url,
+                        response.getStatusLine().toString(), body),
+                        isTransientStatus(code));
+            }
+            String jobId = AudioDocReader.readJobId(body);
+            if (jobId == null) {
+                throw new VocapiaServiceException(String.format(
+                        "No job id in response from '%s': %s", url, body),
+                        false);
+            }
+            return new JobHandle(endpoint.getName(), jobId);
+        } catch (Exception e) {
+            request.abort();
+            throw wrap(url, e);
+        } finally {
+            releaseEndpoint(endpoint);
+        }
+    }
+
+    /**
+     * Fetch the result of a job submitted with
+     * {@link #submitTranscription(String, Blob, String)}.
+     *
+     * @return false if the job is still being processed by the service
+     */
+    public boolean fetchJobResult(String endpointName, String jobId,
+            String method, SegmentHandler handler) {
+        return fetchJobResult(endpointName, jobId, method, handler, null);
+    }
+
+    public boolean fetchJobResult(String endpointName, String jobId,
+            String method, SegmentHandler handler, OutputStream rawCopy) {
+        VocapiaEndpoint endpoint = getEndpoint(endpointName);
+        if (endpoint == null) {
+            throw new VocapiaServiceException(String.format(
+                    "Unknown Vocapia endpoint '%s' for job '%s'",
+                    endpointName, jobId), false);
+        }
+        endpoint.outstandingRequests.incrementAndGet();
+        String url = String.format("%s&jobid=%s",
+                makeServiceUrl(endpoint, method), jobId);
+        HttpGet request = new HttpGet(url);
+        try {
+            HttpResponse response = execute(endpoint, request);
+            if (response.getStatusLine().getStatusCode() == 202) {
+                // Accepted but not processed yet
+                EntityUtils.consume(response.getEntity());
+                return false;
+            }
+            readResponse(url, response, handler, rawCopy);
+            return true;
+        } catch (Exception e) {
+            request.abort();
+            throw wrap(url, e);
+        } finally {
+            releaseEndpoint(endpoint);
+        }
+    }
+
+    /**
+     * Probe every endpoint: any answer that does not report the server as
+     * unavailable puts the endpoint back in rotation.
+     */
+    public void checkHealth() {
+        for (VocapiaEndpoint endpoint : endpoints) {
+            HttpGet request = new HttpGet(endpoint.getUrl());
+            request.getParams().setIntParameter(
+                    CoreConnectionPNames.SO_TIMEOUT, HEALTH_CHECK_TIMEOUT);
+            try {
+                HttpResponse response = execute(endpoint, request);
+                EntityUtils.consume(response.getEntity());
+            } catch (IOException e) {
+                request.abort();
+                log.debug("Health check failed for " + endpoint, e);
+            }
+        }
+    }
+
+    protected String makeServiceUrl(VocapiaEndpoint endpoint, String method) {
+        return String.format("%s?method=%s", endpoint.getUrl(), method);
+    }
+
+    /**
+     * The name of the uploaded file tells the service the container of the
+     * audio, consistently with the Content-Type of the request.
+     */
+    protected String makeUploadUrl(VocapiaEndpoint endpoint, String method,
+            String model, Blob audioContent) {
+        String url = makeServiceUrl(endpoint, method) + "&audiofile=soundtrack"
+                + getUploadFormat(audioContent).extension;
+        if (model != null) {
+            url += String.format("&model=%s", model);
+        }
+        return url;
+    }
+
+    /**
+     * @return the format of the uploaded audio from its MIME type or else its
+     *         file name, MP3 by default. The content is not probed: it may be
+     *         encoded on the fly.
+     */
+    public static AudioFormat getUploadFormat(Blob audioContent) {
+        AudioFormat format = null;
+        if (audioContent.getMimeType() != null) {
+            format = AudioFormat.forMimeType(audioContent.getMimeType());
+        }
+        if (format == null && audioContent.getFilename() != null) {
+            format = AudioFormat.forFilename(audioContent.getFilename());
+        }
+        return format == null ? AudioFormat.MP3 : format;
+    }
+
+    protected HttpResponse execute(VocapiaEndpoint endpoint,
+            HttpUriRequest request) throws IOException {
+        String username = endpoint.getUsername();
+        String password = endpoint.getPassword();
+        if (username != null && password != null) {
+            String credentials = Base64.encodeBase64String((username + ":" + password).getBytes(Charset.forName("UTF-8")));
+            // trim is necessary to remove the trailing CRLF appended by
+            // Base64.encodeBase64String for some reason...
+            request.setHeader("Authorization", "Basic " + credentials.trim());
+        }
+        request.setHeader("Accept", "*/*");
+        HttpResponse response;
+        try {
+            response = httpClient.execute(request);
+        } catch (IOException e) {
+            endpoint.markFailure(maxFailures, quarantineDuration);
+            throw e;
+        }
+        if (isServerUnavailable(response.getStatusLine().getStatusCode())) {
+            endpoint.markFailure(maxFailures, quarantineDuration);
+        } else {
+            endpoint.markSuccess();
+        }
+        return response;
+    }
+
+    protected boolean isServerUnavailable(int statusCode) {
+        return statusCode == 502 || statusCode == 503 || statusCode == 504;
+    }
+
+    /**
+     * @return true for the status codes of an overloaded or temporarily
+     *         unavailable server.
+     */
+    protected boolean isTransientStatus(int statusCode) {
+        return statusCode == 429 || isServerUnavailable(statusCode);
+    }
+
+    /**
+     * Classify a failure: I/O errors (connection refused or reset, timeouts,
+     * no response) are transient, protocol and parsing errors are not.
+     */
+    protected VocapiaServiceException wrap(String url, Exception e) {
+        if (e instanceof VocapiaServiceException) {
+            return (VocapiaServiceException) e;
+        }
+        boolean retryable = e instanceof IOException
+                && !(e instanceof ClientProtocolException);
+        return new VocapiaServiceException(String.format(
+                "Error connecting to '%s': %s", url, e.getMessage()), e,
+                retryable);
+    }
+
+    protected void readResponse(String url, HttpResponse response,
+            SegmentHandler handler, OutputStream rawCopy) throws IOException {
+        InputStream content = response.getEntity().getContent();
+        try {
+            int code = response.getStatusLine().getStatusCode();
+            if (code == 200) {
+                try {
+                    if (rawCopy != null) {
+                        // copy the bytes while they are parsed
+                        AudioDocReader.read(new TeeInputStream(content,
+                                rawCopy), handler);
+                    } else {
+                        AudioDocReader.read(content, handler);
+                    }
+                } catch (XMLStreamException e) {
+                    String errorMsg = String.format(
+                            "Invalid response from '%s': %s\n %s", url,
+                            response.getStatusLine().toString(),
+                            e.getMessage());
+                    // the stream may have been cut while being parsed
+                    throw new VocapiaServiceException(errorMsg, e,
+                            e.getNestedException() instanceof IOException);
+                }
+            } else {
+                String errorMsg = String.format(
+                        "Unexpected response from '%s': %s\n %s", url,
+                        response.getStatusLine().toString(),
+                        IOUtils.toString(content));
+                throw new VocapiaServiceException(errorMsg,
+                        isTransientStatus(code));
+            }
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    /**
+     * Build a request body that streams the media content instead of loading
+     * it in memory: file backed blobs are sent with a known content length,
+     * other blobs are streamed with chunked transfer encoding if their length
+     * is unknown.
+     */
+    public static HttpEntity makeRequestEntity(Blob audioContent)
+            throws IOException {
+        String mimeType = audioContent.getMimeType();
+        File backingFile = getBackingFile(audioContent);
+        if (backingFile != null && backingFile.isFile()) {
+            return new FileEntity(backingFile, mimeType);
+        }
+        long length = audioContent.getLength();
+        InputStreamEntity entity = new InputStreamEntity(
+                audioContent.getStream(), length);
+        entity.setContentType(mimeType);
+        if (length < 0) {
+            entity.setChunked(true);
+        }
+        return entity;
+    }
+
+    public static File getBackingFile(Blob audioContent) {
+        if (audioContent instanceof StreamingBlob) {
+            StreamSource source = ((StreamingBlob) audioContent).getStreamSource();
+            if (source instanceof FileSource) {
+                return ((FileSource) source).getFile();
+            }
+        } else if (audioContent instanceof FileBlob) {
+            return ((FileBlob) audioContent).getFile();
+        }
+        return null;
+    }
+}
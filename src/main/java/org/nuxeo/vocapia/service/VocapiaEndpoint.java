@@ -0,0 +1,94 @@
+package org.nuxeo.vocapia.service;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runtime state of a Vocapia decoding server: number of outstanding requests
+ * and health as observed by the {@link VocapiaClient}.
+ */
+public class VocapiaEndpoint {
+
+    protected final String name;
+
+    protected final URI url;
+
+    protected final String username;
+
+    protected final String password;
+
+    protected final int weight;
+
+    protected final AtomicInteger outstandingRequests = new AtomicInteger();
+
+    protected final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    // time until which the endpoint is taken out of rotation, 0 if healthy
+    protected volatile long unavailableUntil = 0;
+
+    public VocapiaEndpoint(String name, URI url, String username,
+            String password, int weight) {
+        this.name = name;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.weight = weight > 0 ? weight : 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public URI getUrl() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getOutstandingRequests() {
+        return outstandingRequests.get();
+    }
+
+    public boolean isHealthy() {
+        return unavailableUntil == 0;
+    }
+
+    public boolean isAvailable(long now) {
+        return unavailableUntil <= now;
+    }
+
+    /**
+     * Load relative to the capacity of the endpoint, counting the request
+     * about to be sent.
+     */
+    protected double getLoad() {
+        return (outstandingRequests.get() + 1) / (double) weight;
+    }
+
+    protected void markSuccess() {
+        consecutiveFailures.set(0);
+        unavailableUntil = 0;
+    }
+
+    protected void markFailure(int maxFailures, long quarantineDuration) {
+        if (consecutiveFailures.incrementAndGet() >= maxFailures) {
+            unavailableUntil = System.currentTimeMillis() + quarantineDuration;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s(%s, weight=%d, outstanding=%d, healthy=%s)",
+                name, url, weight, outstandingRequests.get(), isHealthy());
+    }
+}
@@ -0,0 +1,67 @@
+package org.nuxeo.vocapia.service;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Contribution of a Vocapia decoding server to the "endpoints" extension
+ * point of the {@link TranscriptionService}.
+ *
+ * <pre>
+ * &lt;endpoint name="vocapia1"&gt;
+ *   &lt;url&gt;https://vocapia1.example.com/voxsigma&lt;/url&gt;
+ *   &lt;username&gt;${vocapia1.username}&lt;/username&gt;
+ *   &lt;password&gt;${vocapia1.password}&lt;/password&gt;
+ *   &lt;weight&gt;2&lt;/weight&gt;
+ * &lt;/endpoint&gt;
+ * </pre>
+ */
+@XObject("endpoint")
+public class VocapiaEndpointDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNode("url")
+    protected String url;
+
+    @XNode("username")
+    protected String username;
+
+    @XNode("password")
+    protected String password;
+
+    /**
+     * Relative capacity of the server: an endpoint with weight 2 is expected
+     * to handle twice as many concurrent requests as an endpoint of weight 1.
+     */
+    @XNode("weight")
+    protected int weight = 1;
+
+    public String getName() {
+        return name == null ? url : name;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,28 @@
+package org.nuxeo.vocapia.service;
+
+/**
+ * Failure of a call to the Vocapia service. Transient failures (connection
+ * errors, timeouts, overloaded or unavailable server) are flagged as
+ * retryable.
+ */
+public class VocapiaServiceException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    protected final boolean retryable;
+
+    public VocapiaServiceException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public VocapiaServiceException(String message, Throwable cause,
+            boolean retryable) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -21,7 +21,6 @@ import java.util.ArrayList;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -31,6 +30,8 @@ import org.nuxeo.vocapia.service.Transcription;
 @XmlRootElement(name = "AudioDoc")
 public class AudioDoc {
 
+    protected static volatile JAXBContext context;
+
     private ArrayList<Segment> segments = new ArrayList<Segment>();
 
     @XmlElementWrapper(name = "SegmentList")
@@ -49,19 +50,32 @@ public class AudioDoc {
     }
 
     public static AudioDoc readFrom(InputStream xmlStream) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(AudioDoc.class);
-        Unmarshaller um = context.createUnmarshaller();
-        return (AudioDoc) um.unmarshal(xmlStream);
+        return (AudioDoc) getJAXBContext().createUnmarshaller().unmarshal(
+                xmlStream);
+    }
+
+    /**
+     * @return the shared, thread safe JAXB context, built on first use.
+     */
+    public static JAXBContext getJAXBContext() throws JAXBException {
+        JAXBContext result = context;
+        if (result == null) {
+            synchronized (AudioDoc.class) {
+                result = context;
+                if (result == null) {
+                    result = JAXBContext.newInstance(AudioDoc.class);
+                    context = result;
+                }
+            }
+        }
+        return result;
     }
 
     public Transcription asTranscription() {
         Transcription transcription = Transcription.emptyTranscription();
+        ShortSegmenter segmenter = new ShortSegmenter();
         for (Segment segment : segments) {
-            for (Segment shortSegment : segment.getAsShortSegments()) {
-                transcription.appendSection(shortSegment.getStartTime(),
-                        shortSegment.getEndTime(), shortSegment.getText(),
-                        shortSegment.getSpeakerId());
-            }
+            segmenter.append(segment, transcription);
         }
         return transcription;
     }
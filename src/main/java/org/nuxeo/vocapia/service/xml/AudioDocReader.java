@@ -0,0 +1,295 @@
+/* Copyright 2013 Nuxeo and contributors.
+ *
+ * This file is licensed to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.vocapia.service.xml;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.nuxeo.vocapia.service.Transcription;
+
+/**
+ * Pull parser for the AudioDoc payloads of the Vocapia service.
+ *
+ * Contrary to {@link AudioDoc#readFrom(InputStream)}, the whole document is
+ * never materialized: each speech segment is handed over to a
+ * {@link SegmentHandler} as soon as it is parsed and can be garbage collected
+ * right after.
+ */
+public class AudioDocReader {
+
+    protected static final String SEGMENT_LIST = "SegmentList";
+
+    protected static final String SPEECH_SEGMENT = "SpeechSegment";
+
+    protected static final String WORD = "Word";
+
+    protected static final XMLInputFactory inputFactory = makeInputFactory();
+
+    /**
+     * Callback to consume the speech segments in document order.
+     */
+    public interface SegmentHandler {
+
+        void handleSegment(Segment segment);
+
+    }
+
+    /**
+     * Incrementally build a {@link Transcription} out of short segments.
+     */
+    public static class TranscriptionBuilder implements SegmentHandler {
+
+        protected final Transcription transcription = Transcription.emptyTranscription();
+
+        protected final ShortSegmenter segmenter;
+
+        public TranscriptionBuilder() {
+            this(Segment.MAX_SEGMENT_DURATION);
+        }
+
+        public TranscriptionBuilder(double maxSegmentDuration) {
+            segmenter = new ShortSegmenter(maxSegmentDuration);
+        }
+
+        @Override
+        public void handleSegment(Segment segment) {
+            segmenter.append(segment, transcription);
+        }
+
+        public Transcription getTranscription() {
+            return transcription;
+        }
+    }
+
+    /**
+     * Keep track of the language of the longest segment, the same way as
+     * {@link AudioDoc#getLanguage()}.
+     */
+    public static class LanguageDetector implements SegmentHandler {
+
+        protected double longestDuration = 0;
+
+        protected String language;
+
+        protected boolean empty = true;
+
+        @Override
+        public void handleSegment(Segment segment) {
+            if (empty || longestDuration < segment.getDuration()) {
+                longestDuration = segment.getDuration();
+                language = segment.getLanguage();
+                empty = false;
+            }
+        }
+
+        public String getLanguage() {
+            return language;
+        }
+    }
+
+    /**
+     * Keep the segments of the transcription of a chunk of a longer media,
+     * with their timecodes shifted by the position of the chunk in the media.
+     */
+    public static class SegmentCollector implements SegmentHandler {
+
+        protected final double offset;
+
+        protected final List<Segment> segments = new ArrayList<Segment>();
+
+        public SegmentCollector(double offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public void handleSegment(Segment segment) {
+            shift(segment, offset);
+            segments.add(segment);
+        }
+
+        public List<Segment> getSegments() {
+            return segments;
+        }
+    }
+
+    /**
+     * Shift the timecodes of the segments of a chunk of a longer media by the
+     * position of the chunk before handing them over.
+     */
+    public static class OffsetSegmentHandler implements SegmentHandler {
+
+        protected final double offset;
+
+        protected final SegmentHandler delegate;
+
+        public OffsetSegmentHandler(double offset, SegmentHandler delegate) {
+            this.offset = offset;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void handleSegment(Segment segment) {
+            shift(segment, offset);
+            delegate.handleSegment(segment);
+        }
+    }
+
+    protected static void shift(Segment segment, double offset) {
+        if (offset == 0) {
+            return;
+        }
+        segment.startTime += offset;
+        segment.endTime += offset;
+        for (Word word : segment.words) {
+            word.startTime += offset;
+        }
+    }
+
+    protected static XMLInputFactory makeInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
+    public static void read(InputStream xmlStream, SegmentHandler handler)
+            throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(xmlStream);
+        try {
+            boolean inSegmentList = false;
+            Segment segment = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (SEGMENT_LIST.equals(name)) {
+                        inSegmentList = true;
+                    } else if (inSegmentList && SPEECH_SEGMENT.equals(name)) {
+                        segment = readSegment(reader);
+                    } else if (segment != null && WORD.equals(name)) {
+                        segment.words.add(readWord(reader));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (SEGMENT_LIST.equals(name)) {
+                        inSegmentList = false;
+                    } else if (segment != null && SPEECH_SEGMENT.equals(name)) {
+                        handler.handleSegment(segment);
+                        segment = null;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public static Transcription readTranscription(InputStream xmlStream)
+            throws XMLStreamException {
+        TranscriptionBuilder builder = new TranscriptionBuilder();
+        read(xmlStream, builder);
+        return builder.getTranscription();
+    }
+
+    public static String readLanguage(InputStream xmlStream)
+            throws XMLStreamException {
+        LanguageDetector detector = new LanguageDetector();
+        read(xmlStream, detector);
+        return detector.getLanguage();
+    }
+
+    /**
+     * Extract the identifier of a job submitted in asynchronous mode: either
+     * the first "id" or "jobid" attribute of an XML answer, the text of its
+     * first element containing some, e.g. {@code <job><id>42</id></job>}, or
+     * the trimmed plain text body.
+     *
+     * @return the job identifier or null if none could be found
+     */
+    public static String readJobId(String body) throws XMLStreamException {
+        if (body == null) {
+            return null;
+        }
+        String trimmed = body.trim();
+        if (trimmed.isEmpty()) {
+            return null;
+        }
+        if (!trimmed.startsWith("<")) {
+            return trimmed;
+        }
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(
+                trimmed));
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String id = reader.getAttributeValue(null, "id");
+                    if (id == null) {
+                        id = reader.getAttributeValue(null, "jobid");
+                    }
+                    if (id != null && !id.trim().isEmpty()) {
+                        return id.trim();
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA) {
+                    String text = reader.getText().trim();
+                    if (!text.isEmpty()) {
+                        return text;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    protected static Segment readSegment(XMLStreamReader reader) {
+        Segment segment = new Segment();
+        segment.speakerId = reader.getAttributeValue(null, "spkid");
+        segment.language = reader.getAttributeValue(null, "lang");
+        segment.startTime = parseDouble(reader.getAttributeValue(null,
+                "stime"));
+        segment.endTime = parseDouble(reader.getAttributeValue(null, "etime"));
+        return segment;
+    }
+
+    protected static Word readWord(XMLStreamReader reader)
+            throws XMLStreamException {
+        Word word = new Word();
+        word.startTime = parseDouble(reader.getAttributeValue(null, "stime"));
+        word.duration = parseDouble(reader.getAttributeValue(null, "dur"));
+        // consumes the matching end element
+        word.setText(reader.getElementText());
+        return word;
+    }
+
+    protected static double parseDouble(String value) {
+        if (value == null) {
+            return 0;
+        }
+        return Double.parseDouble(value.trim());
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2013 Nuxeo and contributors.
+ *
+ * This file is licensed to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.nuxeo.vocapia.service.xml;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.io.IOUtils;
+import org.nuxeo.vocapia.service.Transcription;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.OffsetSegmentHandler;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.SegmentHandler;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.TranscriptionBuilder;
+
+/**
+ * Compressed archive of the raw AudioDoc payloads returned by the service for
+ * a transcription, with the word level timings and confidences, so that the
+ * transcription can be derived again without calling the service.
+ *
+ * The archive is a ZIP file with one entry per transcribed part of the media,
+ * named after the position of the part in the media in seconds: a single
+ * "0000000.000.xml" entry unless the media was transcribed in chunks.
+ */
+public class RawTranscriptionArchive {
+
+    public static final String MIME_TYPE = "application/zip";
+
+    public static final String FILENAME = "vocapia-transcription.zip";
+
+    protected static final String ENTRY_SUFFIX = ".xml";
+
+    /**
+     * Raw payload of the transcription of a part of the media.
+     */
+    public static class Part {
+
+        public final double offset;
+
+        public final File file;
+
+        public Part(double offset, File file) {
+            this.offset = offset;
+            this.file = file;
+        }
+    }
+
+    public static void write(List<Part> parts, OutputStream out)
+            throws IOException {
+        List<Part> sorted = new ArrayList<Part>(parts);
+        Collections.sort(sorted, new Comparator<Part>() {
+            @Override
+            public int compare(Part p1, Part p2) {
+                return Double.compare(p1.offset, p2.offset);
+            }
+        });
+        ZipOutputStream zip = new ZipOutputStream(out);
+        for (Part part : sorted) {
+            zip.putNextEntry(new ZipEntry(makeEntryName(part.offset)));
+            InputStream in = new FileInputStream(part.file);
+            try {
+                IOUtils.copy(in, zip);
+            } finally {
+                in.close();
+            }
+            zip.closeEntry();
+        }
+        zip.finish();
+    }
+
+    /**
+     * Stream the segments of all the parts, in order, with their timecodes
+     * relative to the start of the media.
+     */
+    public static void read(InputStream archive, SegmentHandler handler)
+            throws IOException, XMLStreamException {
+        ZipInputStream zip = new ZipInputStream(archive);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            String name = entry.getName();
+            if (!name.endsWith(ENTRY_SUFFIX)) {
+                continue;
+            }
+            double offset = Double.parseDouble(name.substring(0, name.length()
+                    - ENTRY_SUFFIX.length()));
+            // keep the archive open for the next entries
+            AudioDocReader.read(new FilterInputStream(zip) {
+                @Override
+                public void close() {
+                }
+            }, new OffsetSegmentHandler(offset, handler));
+            zip.closeEntry();
+        }
+    }
+
+    public static Transcription readTranscription(InputStream archive,
+            double maxSegmentDuration) throws IOException, XMLStreamException {
+        TranscriptionBuilder builder = new TranscriptionBuilder(
+                maxSegmentDuration);
+        read(archive, builder);
+        return builder.getTranscription();
+    }
+
+    protected static String makeEntryName(double offset) {
+        // fixed width so that the entries sort naturally
+        return String.format(Locale.ENGLISH, "%011.3f", offset)
+                + ENTRY_SUFFIX;
+    }
+}
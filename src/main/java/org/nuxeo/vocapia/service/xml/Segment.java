@@ -75,7 +75,7 @@ public class Segment {
     }
 
     public String getText() {
-        StringBuffer sb = new StringBuffer();
+        StringBuilder sb = new StringBuilder();
         for (Word word : words) {
             String w = word.getText().trim();
             if (isPunctuation(w)) {
@@ -112,7 +112,15 @@ public class Segment {
     }
 
     public List<Segment> getAsShortSegments() {
-        if (duration() < MAX_SEGMENT_DURATION) {
+        return getAsShortSegments(MAX_SEGMENT_DURATION);
+    }
+
+    /**
+     * Split the segment between words once a part exceeds the given duration
+     * in seconds, keeping trailing punctuation with the previous part.
+     */
+    public List<Segment> getAsShortSegments(double maxSegmentDuration) {
+        if (duration() < maxSegmentDuration) {
             return Collections.singletonList(this);
         }
         List<Segment> shortSegments = new ArrayList<Segment>();
@@ -135,7 +143,7 @@ public class Segment {
             }
             s.words.add(w);
             s.endTime = w.startTime + w.duration;
-            if (s.duration() > MAX_SEGMENT_DURATION) {
+            if (s.duration() > maxSegmentDuration) {
                 durationExceeded = true;
             }
         }
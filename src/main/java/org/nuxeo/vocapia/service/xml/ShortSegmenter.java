@@ -0,0 +1,83 @@
+package org.nuxeo.vocapia.service.xml;
+
+import java.util.List;
+
+import org.nuxeo.vocapia.service.Transcription;
+
+/**
+ * Split the speech segments into short sections the same way as
+ * {@link Segment#getAsShortSegments(double)} and {@link Segment#getText()},
+ * but in a single pass over the words, writing the boundaries and the text
+ * of the sections straight into the transcription without intermediate
+ * segments or strings.
+ */
+public class ShortSegmenter {
+
+    protected final double maxSegmentDuration;
+
+    public ShortSegmenter() {
+        this(Segment.MAX_SEGMENT_DURATION);
+    }
+
+    public ShortSegmenter(double maxSegmentDuration) {
+        this.maxSegmentDuration = maxSegmentDuration;
+    }
+
+    public void append(Segment segment, Transcription transcription) {
+        List<Word> words = segment.words;
+        transcription.openSection(segment.startTime, segment.speakerId);
+        boolean split = segment.duration() >= maxSegmentDuration;
+        double start = segment.startTime;
+        double end = start;
+        boolean durationExceeded = false;
+        for (int i = 0; i < words.size(); i++) {
+            Word word = words.get(i);
+            String text = word.getText();
+            int textStart = trimStart(text);
+            int textEnd = trimEnd(text, textStart);
+            boolean punctuation = isPunctuation(text, textStart, textEnd);
+            if (durationExceeded && !punctuation) {
+                transcription.closeSection(end);
+                start = word.startTime;
+                transcription.openSection(start, segment.speakerId);
+                durationExceeded = false;
+            }
+            // Do not put a leading space
+            if (!punctuation && !transcription.isSectionTextEmpty()) {
+                transcription.appendText(' ');
+            }
+            transcription.appendText(text, textStart, textEnd);
+            if (split) {
+                end = word.startTime + word.duration;
+                if (end - start > maxSegmentDuration) {
+                    durationExceeded = true;
+                }
+            }
+        }
+        transcription.closeSection(split ? end : segment.endTime);
+    }
+
+    protected static int trimStart(String text) {
+        int start = 0;
+        while (start < text.length() && text.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    protected static int trimEnd(String text, int start) {
+        int end = text.length();
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    protected static boolean isPunctuation(String text, int start, int end) {
+        if (end - start != 1) {
+            return false;
+        }
+        char c = text.charAt(start);
+        return c == '.' || c == ',' || c == ':';
+    }
+}
@@ -0,0 +1,64 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.vocapia.converter.AudioFormat;
+import org.nuxeo.vocapia.service.VocapiaClient;
+
+public class TestAudioFormat {
+
+    protected static AudioFormat probe(String header)
+            throws UnsupportedEncodingException {
+        byte[] bytes = header.getBytes("ISO-8859-1");
+        return AudioFormat.probe(bytes, bytes.length);
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        assertEquals(AudioFormat.MP3, probe("ID3\u0004\u0000\u0000"));
+        assertEquals(AudioFormat.MP3, probe("\u00ff\u00fb\u0090d"));
+        assertEquals(AudioFormat.AAC, probe("\u00ff\u00f1P\u0080"));
+        assertEquals(AudioFormat.WAV, probe("RIFF$\u0000\u0000\u0000WAVE"));
+        assertEquals(AudioFormat.FLAC, probe("fLaC\u0000\u0000\u0000"));
+        assertEquals(AudioFormat.OGG, probe("OggS\u0000\u0002"));
+        assertEquals(AudioFormat.M4A, probe("\u0000\u0000\u0000 ftypM4A "));
+    }
+
+    @Test
+    public void testProbeVideo() throws Exception {
+        assertNull(probe("\u0000\u0000\u0000 ftypisom"));
+        assertNull(probe("RIFF$\u0000\u0000\u0000AVI "));
+        assertNull(probe("\u001aE\u00df\u00a3"));
+        assertNull(probe(""));
+    }
+
+    @Test
+    public void testForFile() {
+        assertEquals(AudioFormat.AAC, AudioFormat.forFile(new File("a.aac")));
+        assertEquals(AudioFormat.WAV, AudioFormat.forFile(new File("a.WAV")));
+        assertEquals(AudioFormat.MP3, AudioFormat.forFile(new File("a.tmp")));
+    }
+
+    protected static AudioFormat getUploadFormat(String mimeType,
+            String filename) {
+        Blob blob = new ByteArrayBlob(new byte[0], mimeType);
+        blob.setFilename(filename);
+        return VocapiaClient.getUploadFormat(blob);
+    }
+
+    @Test
+    public void testUploadFormat() {
+        assertEquals(AudioFormat.FLAC,
+                getUploadFormat("audio/x-flac; rate=44100", "a.bin"));
+        assertEquals(AudioFormat.AAC,
+                getUploadFormat("application/octet-stream", "remuxed.aac"));
+        assertEquals(AudioFormat.MP3, getUploadFormat(null, null));
+    }
+}
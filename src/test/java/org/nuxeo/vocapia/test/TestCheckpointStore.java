@@ -0,0 +1,72 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.vocapia.service.CheckpointStore;
+import org.nuxeo.vocapia.service.TranscriptionCheckpoint;
+import org.nuxeo.vocapia.service.TranscriptionCheckpoint.Stage;
+
+public class TestCheckpointStore {
+
+    protected File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("checkpoints-", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testCheckpointRoundTrip() throws IOException {
+        CheckpointStore store = new CheckpointStore(directory);
+        store.init();
+        TranscriptionCheckpoint checkpoint = new TranscriptionCheckpoint(
+                "default", "doc1", "file:content", "abc");
+        checkpoint.category = "speech_transcription_long";
+        checkpoint.soundTrack = store.getFile(checkpoint, ".mp3");
+        assertTrue(checkpoint.soundTrack.createNewFile());
+        checkpoint.stage = Stage.LANGUAGE_DETECTED;
+        checkpoint.detectedLanguage = "fr";
+        store.save(checkpoint);
+
+        TranscriptionCheckpoint loaded = store.load(checkpoint.getKey());
+        assertEquals(Stage.LANGUAGE_DETECTED, loaded.stage);
+        assertEquals("abc", loaded.sourceDigest);
+        assertEquals("speech_transcription_long", loaded.category);
+        assertEquals(checkpoint.soundTrack, loaded.soundTrack);
+        assertEquals("fr", loaded.detectedLanguage);
+        assertNull(loaded.language);
+        assertNull(loaded.rawArchive);
+        assertTrue(loaded.isAtLeast(Stage.EXTRACTED));
+        assertFalse(loaded.isAtLeast(Stage.SUBMITTED));
+
+        List<TranscriptionCheckpoint> all = new CheckpointStore(directory).list();
+        assertEquals(1, all.size());
+
+        store.remove(loaded);
+        assertNull(store.load(checkpoint.getKey()));
+        assertFalse(checkpoint.soundTrack.exists());
+    }
+}
@@ -0,0 +1,113 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.nuxeo.vocapia.converter.SilenceSplitter;
+import org.nuxeo.vocapia.service.TranscriptionWork;
+import org.nuxeo.vocapia.service.xml.AudioDocReader;
+import org.nuxeo.vocapia.service.xml.AudioDocReader.SegmentCollector;
+import org.nuxeo.vocapia.service.xml.Segment;
+import org.nuxeo.vocapia.service.xml.Word;
+
+public class TestChunkedTranscription {
+
+    protected static final List<String> FFMPEG_OUTPUT = Arrays.asList(
+            "Input #0, mp3, from 'soundtrack.mp3':",
+            "  Duration: 00:25:00.50, start: 0.000000, bitrate: 32 kb/s",
+            "[silencedetect @ 0x1f3c2a0] silence_start: -0.01",
+            "[silencedetect @ 0x1f3c2a0] silence_end: 1.2 | silence_duration: 1.21",
+            "[silencedetect @ 0x1f3c2a0] silence_start: 590",
+            "[silencedetect @ 0x1f3c2a0] silence_end: 592 | silence_duration: 2",
+            "[silencedetect @ 0x1f3c2a0] silence_start: 650",
+            "[silencedetect @ 0x1f3c2a0] silence_end: 651 | silence_duration: 1",
+            "[silencedetect @ 0x1f3c2a0] silence_start: 1499.5");
+
+    @Test
+    public void testParseFfmpegOutput() {
+        double duration = SilenceSplitter.parseDuration(FFMPEG_OUTPUT);
+        assertEquals(1500.5, duration, 1e-6);
+        List<double[]> silences = SilenceSplitter.parseSilences(
+                FFMPEG_OUTPUT, duration);
+        assertEquals(4, silences.size());
+        assertEquals(0, silences.get(0)[0], 1e-6);
+        assertEquals(591, (silences.get(1)[0] + silences.get(1)[1]) / 2, 1e-6);
+        // still silent at the end of the stream
+        assertEquals(1500.5, silences.get(3)[1], 1e-6);
+    }
+
+    @Test
+    public void testCutPointsFollowSilences() {
+        List<double[]> silences = SilenceSplitter.parseSilences(
+                FFMPEG_OUTPUT, 1500.5);
+        List<Double> cutPoints = SilenceSplitter.computeCutPoints(silences,
+                1500.5, 600);
+        // the silence the closest to 600s, then no silence around 1191s
+        assertEquals(2, cutPoints.size());
+        assertEquals(591, cutPoints.get(0), 1e-6);
+        assertEquals(1191, cutPoints.get(1), 1e-6);
+
+        // the last chunk is short enough to be kept whole
+        cutPoints = SilenceSplitter.computeCutPoints(silences, 1500.5, 400);
+        assertEquals(2, cutPoints.size());
+        assertEquals(591, cutPoints.get(0), 1e-6);
+        assertEquals(991, cutPoints.get(1), 1e-6);
+
+        assertTrue(SilenceSplitter.computeCutPoints(silences, 500, 600).isEmpty());
+    }
+
+    @Test
+    public void testExcerptsSkipSilences() {
+        List<double[]> silences = SilenceSplitter.parseSilences(
+                FFMPEG_OUTPUT, 1500.5);
+        List<Double> starts = SilenceSplitter.computeExcerptStarts(silences,
+                1500.5, 3, 30);
+        assertEquals(3, starts.size());
+        assertEquals(360.125, starts.get(0), 1e-6);
+        assertEquals(735.25, starts.get(1), 1e-6);
+        assertEquals(1110.375, starts.get(2), 1e-6);
+
+        // would start in the silence between 730s and 740s
+        silences.add(new double[] { 730, 740 });
+        starts = SilenceSplitter.computeExcerptStarts(silences, 1500.5, 3, 30);
+        assertEquals(740, starts.get(1), 1e-6);
+    }
+
+    @Test
+    public void testLanguageMajorityVote() {
+        assertEquals("fre", TranscriptionWork.getMajorityLanguage(Arrays.asList(
+                "fre", "eng", "fre")));
+        assertEquals("fre", TranscriptionWork.getMajorityLanguage(Arrays.asList(
+                "fre", null, "fre")));
+        assertNull(TranscriptionWork.getMajorityLanguage(Arrays.asList("fre",
+                "eng", null)));
+        assertNull(TranscriptionWork.getMajorityLanguage(Arrays.asList("fre",
+                "eng")));
+        assertNull(TranscriptionWork.getMajorityLanguage(new ArrayList<String>()));
+    }
+
+    @Test
+    public void testSegmentsAreShiftedByTheChunkOffset() throws Exception {
+        InputStream stream = getClass().getResourceAsStream(
+                "/fake_english_transcription.xml");
+        SegmentCollector collector = new SegmentCollector(600);
+        AudioDocReader.read(stream, collector);
+        List<Segment> segments = new ArrayList<Segment>(
+                collector.getSegments());
+        assertEquals(1, segments.size());
+        Segment segment = segments.get(0);
+        assertEquals(603.37, segment.getStartTime(), 1e-6);
+        assertEquals(618.66, segment.getEndTime(), 1e-6);
+        for (Word word : segment.getWords()) {
+            assertTrue(word.getStartTime() >= segment.getStartTime());
+            assertTrue(word.getStartTime() <= segment.getEndTime());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.nuxeo.vocapia.service.CompactTranscription;
+import org.nuxeo.vocapia.service.Transcription;
+
+public class TestCompactTranscription {
+
+    protected static byte[] write(Transcription transcription)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactTranscription.write(transcription, out);
+        return out.toByteArray();
+    }
+
+    protected static Transcription makeTranscription(int count) {
+        Transcription transcription = Transcription.emptyTranscription();
+        for (int i = 0; i < count; i++) {
+            transcription.appendSection(3 * i, 3 * i + 3, "section \u00e9 "
+                    + i, "S" + (i % 4));
+        }
+        return transcription;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Transcription transcription = makeTranscription(1000);
+        byte[] bytes = write(transcription);
+        Transcription read = CompactTranscription.read(new ByteArrayInputStream(
+                bytes));
+        assertEquals(transcription.getSections(), read.getSections());
+        assertEquals(transcription.getText(), read.getText());
+    }
+
+    @Test
+    public void testTimecodePrecision() throws Exception {
+        Transcription transcription = Transcription.emptyTranscription();
+        transcription.appendSection(603.37, 605.12, "text", "S1");
+        Transcription read = CompactTranscription.read(new ByteArrayInputStream(
+                write(transcription)));
+        assertEquals(Double.valueOf(603.37),
+                read.getSections().get(0).get(Transcription.TIMECODE_START));
+        assertEquals(Double.valueOf(605.12),
+                read.getSections().get(0).get(Transcription.TIMECODE_STOP));
+    }
+
+    @Test
+    public void testMissingValues() throws Exception {
+        Transcription transcription = Transcription.emptyTranscription();
+        transcription.appendSection(Double.NaN, 1, null, null);
+        Transcription read = CompactTranscription.read(new ByteArrayInputStream(
+                write(transcription)));
+        assertEquals(1, read.getSectionCount());
+        assertNull(read.getSections().get(0).get(Transcription.TIMECODE_START));
+        assertNull(read.getText(0));
+        assertNull(read.getSpeakerId(0));
+    }
+
+    @Test
+    public void testTimeWindow() throws Exception {
+        Transcription transcription = makeTranscription(1000);
+        byte[] bytes = write(transcription);
+        // sections 200 to 210 overlap [601, 631]
+        Transcription window = CompactTranscription.read(
+                new ByteArrayInputStream(bytes), 601, 631);
+        assertEquals(11, window.getSectionCount());
+        assertEquals(transcription.getSections().subList(200, 211),
+                window.getSections());
+        assertEquals(0, CompactTranscription.read(
+                new ByteArrayInputStream(bytes), 5000, 6000).getSectionCount());
+    }
+}
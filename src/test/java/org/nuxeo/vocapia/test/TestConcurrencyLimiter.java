@@ -0,0 +1,88 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import javax.sql.DataSource;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+import org.nuxeo.vocapia.service.ConcurrencyLimiter;
+import org.nuxeo.vocapia.service.ConcurrencyLimiter.Permit;
+
+public class TestConcurrencyLimiter {
+
+    @Test
+    public void testFairShare() {
+        // alone: all the permits can be taken
+        assertTrue(ConcurrencyLimiter.mayAcquire(5, 6, 1, false));
+        // holding more than its share: the free permits go to the others
+        assertTrue(ConcurrencyLimiter.mayAcquire(2, 6, 2, true));
+        assertFalse(ConcurrencyLimiter.mayAcquire(3, 6, 2, true));
+        // the share is rounded up so that no permit stays unused
+        assertTrue(ConcurrencyLimiter.mayAcquire(2, 7, 3, true));
+        assertFalse(ConcurrencyLimiter.mayAcquire(3, 7, 3, true));
+        // more nodes than permits: one each at least
+        assertTrue(ConcurrencyLimiter.mayAcquire(0, 2, 5, true));
+        assertFalse(ConcurrencyLimiter.mayAcquire(1, 2, 5, true));
+    }
+
+    protected static DataSource makeDataSource(String name) {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        return dataSource;
+    }
+
+    @Test
+    public void testAcquireAndRelease() throws Exception {
+        DataSource dataSource = makeDataSource("testAcquireAndRelease");
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(dataSource,
+                "node1", 2, 60 * 1000, 10);
+        limiter.init();
+        // another node starting concurrently
+        new ConcurrencyLimiter(dataSource, "node2", 2, 60 * 1000, 10).init();
+
+        Permit p1 = limiter.acquire(0);
+        Permit p2 = limiter.acquire(0);
+        assertNotNull(p1);
+        assertNotNull(p2);
+        assertNull(limiter.acquire(50));
+        assertEquals(2, limiter.getActiveCount());
+        assertEquals(2, limiter.getClusterActiveCount());
+
+        limiter.release(p1);
+        assertEquals(1, limiter.getClusterActiveCount());
+        assertNotNull(limiter.acquire(0));
+
+        limiter.releaseAll();
+        assertEquals(0, limiter.getActiveCount());
+        assertEquals(0, limiter.getClusterActiveCount());
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        DataSource dataSource = makeDataSource("testLeaseExpiry");
+        long lease = 500;
+        ConcurrencyLimiter node1 = new ConcurrencyLimiter(dataSource, "node1",
+                1, lease, 10);
+        ConcurrencyLimiter node2 = new ConcurrencyLimiter(dataSource, "node2",
+                1, lease, 10);
+        node1.init();
+        node2.init();
+        assertNotNull(node1.acquire(0));
+
+        // renewed before its expiry: still held
+        Thread.sleep(lease / 2);
+        node1.renewLeases();
+        Thread.sleep(lease / 2 + 100);
+        assertNull(node2.acquire(0));
+
+        // not renewed, e.g. crashed node: taken over once expired
+        Thread.sleep(lease + 100);
+        assertNotNull(node2.acquire(0));
+        assertEquals(1, node2.getClusterActiveCount());
+    }
+}
@@ -0,0 +1,177 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.Test;
+import org.nuxeo.vocapia.service.Transcription;
+import org.nuxeo.vocapia.service.xml.AudioDoc;
+import org.nuxeo.vocapia.service.xml.Segment;
+import org.nuxeo.vocapia.service.xml.ShortSegmenter;
+import org.nuxeo.vocapia.service.xml.Word;
+
+/**
+ * Micro-benchmarks of the parsing of the service responses. They only run
+ * when the nuxeo.vocapia.benchmarks system property is true, as timings
+ * depend on the machine, and log their results.
+ */
+public class TestParsingPerformance {
+
+    private static final Log log = LogFactory.getLog(TestParsingPerformance.class);
+
+    public static final String BENCHMARKS_PROPERTY = "nuxeo.vocapia.benchmarks";
+
+    protected static final int WARMUP_ITERATIONS = 20;
+
+    protected static final int ITERATIONS = 200;
+
+    protected static boolean isBenchmarking() {
+        return Boolean.getBoolean(BENCHMARKS_PROPERTY);
+    }
+
+    protected byte[] readResource(String name) throws IOException {
+        InputStream stream = getClass().getResourceAsStream(name);
+        try {
+            return IOUtils.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    protected long parseWithNewContext(byte[] payload, int iterations)
+            throws JAXBException {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // former implementation of AudioDoc.readFrom
+            JAXBContext context = JAXBContext.newInstance(AudioDoc.class);
+            context.createUnmarshaller().unmarshal(
+                    new ByteArrayInputStream(payload));
+        }
+        return System.nanoTime() - t0;
+    }
+
+    protected long parseWithSharedContext(byte[] payload, int iterations)
+            throws JAXBException {
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            AudioDoc.readFrom(new ByteArrayInputStream(payload));
+        }
+        return System.nanoTime() - t0;
+    }
+
+    @Test
+    public void testSharedJAXBContextBenchmark() throws Exception {
+        assumeTrue(isBenchmarking());
+        byte[] payload = readResource("/afp_ar_news_1_trans.xml");
+        parseWithNewContext(payload, WARMUP_ITERATIONS);
+        parseWithSharedContext(payload, WARMUP_ITERATIONS);
+
+        long newContextTime = parseWithNewContext(payload, ITERATIONS);
+        long sharedContextTime = parseWithSharedContext(payload, ITERATIONS);
+        log.info(String.format(
+                "AudioDoc.readFrom: %.3f ms/call with a new JAXBContext,"
+                        + " %.3f ms/call with the shared JAXBContext",
+                newContextTime / 1e6 / ITERATIONS, sharedContextTime / 1e6
+                        / ITERATIONS));
+    }
+
+    /**
+     * @return speech segments of 5 to 35 seconds of words of 0.1 to 0.6
+     *         seconds, with some punctuation, covering the given duration
+     */
+    protected List<Segment> makeSegments(double duration) {
+        Random random = new Random(42);
+        String[] punctuation = { ".", ",", ":" };
+        List<Segment> segments = new ArrayList<Segment>();
+        double time = 0;
+        while (time < duration) {
+            Segment segment = new Segment();
+            segment.setSpeakerId("S" + random.nextInt(8));
+            segment.setStartTime(time);
+            double end = time + 5 + random.nextInt(30);
+            while (time < end) {
+                Word word = new Word();
+                boolean mark = random.nextInt(10) == 0;
+                word.setText(mark ? punctuation[random.nextInt(3)]
+                        : " word" + random.nextInt(1000) + " ");
+                word.setStartTime(time);
+                word.setDuration(mark ? 0 : 0.1 + random.nextInt(6) / 10.0);
+                segment.getWords().add(word);
+                time += word.getDuration();
+            }
+            segment.setEndTime(time);
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    protected Transcription segmentWithShortSegments(List<Segment> segments) {
+        // former implementation of TranscriptionBuilder
+        Transcription transcription = Transcription.emptyTranscription();
+        for (Segment segment : segments) {
+            for (Segment shortSegment : segment.getAsShortSegments()) {
+                transcription.appendSection(shortSegment.getStartTime(),
+                        shortSegment.getEndTime(), shortSegment.getText(),
+                        shortSegment.getSpeakerId());
+            }
+        }
+        return transcription;
+    }
+
+    protected Transcription segmentInOnePass(List<Segment> segments) {
+        Transcription transcription = Transcription.emptyTranscription();
+        ShortSegmenter segmenter = new ShortSegmenter();
+        for (Segment segment : segments) {
+            segmenter.append(segment, transcription);
+        }
+        return transcription;
+    }
+
+    @Test
+    public void testSinglePassSegmentation() throws Exception {
+        // four hours of speech
+        List<Segment> segments = makeSegments(4 * 3600);
+        long words = 0;
+        for (Segment segment : segments) {
+            words += segment.getWords().size();
+        }
+        Transcription expected = segmentWithShortSegments(segments);
+        Transcription actual = segmentInOnePass(segments);
+        assertEquals(expected.getSections(), actual.getSections());
+        assertEquals(expected.getText(), actual.getText());
+        if (!isBenchmarking()) {
+            return;
+        }
+
+        int iterations = 5;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            segmentWithShortSegments(segments);
+        }
+        long shortSegmentsTime = System.nanoTime() - t0;
+        t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            segmentInOnePass(segments);
+        }
+        long onePassTime = System.nanoTime() - t0;
+        log.info(String.format(
+                "Segmentation of %d words into %d sections: %.1f Mwords/s"
+                        + " with short segments, %.1f Mwords/s in one pass",
+                words, actual.getSectionCount(), words * iterations * 1e3
+                        / shortSegmentsTime, words * iterations * 1e3
+                        / onePassTime));
+    }
+}
@@ -0,0 +1,128 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nuxeo.vocapia.service.SoundTrackCache;
+
+public class TestSoundTrackCache {
+
+    protected File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("soundtrack-cache-", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    protected File makeSoundTrack(int length) throws IOException {
+        File file = File.createTempFile("extracted-", ".mp3");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testQuotaSparesFilesInUse() throws IOException {
+        SoundTrackCache cache = new SoundTrackCache(directory, 250);
+        cache.init();
+        String k1 = SoundTrackCache.makeKey("d1", "speech");
+        String k2 = SoundTrackCache.makeKey("d2", "speech");
+        String k3 = SoundTrackCache.makeKey("d3", "speech");
+
+        assertNull(cache.acquire(k1));
+        File f1 = cache.store(k1, makeSoundTrack(100));
+        cache.release(k1);
+        File f2 = cache.store(k2, makeSoundTrack(100));
+        // k2 is still in use: only the least recently used k1 can go
+        File f3 = cache.store(k3, makeSoundTrack(100));
+        assertFalse(f1.exists());
+        assertTrue(f2.exists());
+        assertTrue(f3.exists());
+        assertEquals(200, cache.getSize());
+        assertEquals(1, cache.getEvictionCount());
+
+        assertEquals(f2, cache.acquire(k2));
+        cache.release(k2);
+        cache.release(k2);
+        cache.release(k3);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testConcurrentStoreKeepsFirstFile() throws IOException {
+        SoundTrackCache cache = new SoundTrackCache(directory, 1000);
+        cache.init();
+        String key = SoundTrackCache.makeKey("d1", "speech");
+        File first = cache.store(key, makeSoundTrack(100));
+        File duplicate = makeSoundTrack(100);
+        assertEquals(first, cache.store(key, duplicate));
+        assertFalse(duplicate.exists());
+        assertEquals(100, cache.getSize());
+    }
+
+    @Test
+    public void testFilesSurviveRestart() throws IOException {
+        SoundTrackCache cache = new SoundTrackCache(directory, 1000);
+        cache.init();
+        String key = SoundTrackCache.makeKey("d1", "speech");
+        cache.store(key, makeSoundTrack(100));
+        cache.release(key);
+
+        SoundTrackCache restarted = new SoundTrackCache(directory, 1000);
+        restarted.init();
+        assertNotNull(restarted.acquire(key));
+        assertEquals(100, restarted.getSize());
+    }
+
+    @Test
+    public void testInitSparesUnrelatedFiles() throws IOException {
+        File unrelated = new File(directory, "unrelated.mp3");
+        File other = new File(directory, "other.txt");
+        File subdirectory = new File(directory, "subdirectory");
+        File leftover = new File(directory, SoundTrackCache.PREFIX
+                + "d1-speech123.tmp");
+        unrelated.createNewFile();
+        other.createNewFile();
+        subdirectory.mkdir();
+        leftover.createNewFile();
+
+        SoundTrackCache cache = new SoundTrackCache(directory, 1000);
+        cache.init();
+        assertEquals(0, cache.getFileCount());
+        assertTrue(unrelated.exists());
+        assertTrue(other.exists());
+        assertTrue(subdirectory.isDirectory());
+        assertFalse(leftover.exists());
+        cache.clear();
+        assertTrue(unrelated.exists());
+        subdirectory.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.nuxeo.vocapia.service.Transcription;
+
+public class TestTranscription {
+
+    protected static Map<String, Object> makeSection(Double start,
+            Double stop, String text, String speakerId) {
+        Map<String, Object> section = new HashMap<String, Object>();
+        section.put(Transcription.TIMECODE_START, start);
+        section.put(Transcription.TIMECODE_STOP, stop);
+        section.put(Transcription.TEXT, text);
+        section.put(Transcription.SPEAKER_ID, speakerId);
+        return section;
+    }
+
+    @Test
+    public void testSectionsView() {
+        Transcription transcription = Transcription.emptyTranscription();
+        transcription.appendSection(0.5, 2.25, "hello", "MS1");
+        transcription.appendSection(2.25, 4, "world", "FS2");
+        transcription.appendSection(4, 5, "again", "MS1");
+        List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+        expected.add(makeSection(0.5, 2.25, "hello", "MS1"));
+        expected.add(makeSection(2.25, 4.0, "world", "FS2"));
+        expected.add(makeSection(4.0, 5.0, "again", "MS1"));
+        assertEquals(expected, transcription.getSections());
+        assertEquals(expected.get(1), transcription.getSections().get(1));
+        assertEquals("hello\nworld\nagain", transcription.getText());
+        assertEquals("MS1", transcription.getSpeakerId(2));
+    }
+
+    @Test
+    public void testMissingValues() {
+        List<Map<String, Object>> sections = new ArrayList<Map<String, Object>>();
+        sections.add(makeSection(null, 1.0, null, null));
+        Transcription transcription = Transcription.fromSections(sections);
+        Map<String, Object> section = transcription.getSections().get(0);
+        assertNull(section.get(Transcription.TIMECODE_START));
+        assertNull(section.get(Transcription.TEXT));
+        assertTrue(section.containsKey(Transcription.SPEAKER_ID));
+        assertEquals(sections, transcription.getSections());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Transcription transcription = Transcription.emptyTranscription();
+        for (int i = 0; i < 100; i++) {
+            transcription.appendSection(i, i + 1, "word" + i, "S" + (i % 3));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(transcription.getSections());
+        out.close();
+        Object copy = new ObjectInputStream(new ByteArrayInputStream(
+                bytes.toByteArray())).readObject();
+        assertEquals(ArrayList.class, copy.getClass());
+        assertEquals(transcription.getSections(), copy);
+    }
+}
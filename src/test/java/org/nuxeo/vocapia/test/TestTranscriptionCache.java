@@ -0,0 +1,75 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.nuxeo.vocapia.service.Transcription;
+import org.nuxeo.vocapia.service.TranscriptionCache;
+import org.nuxeo.vocapia.service.TranscriptionCache.Entry;
+
+public class TestTranscriptionCache {
+
+    protected Entry makeEntry(String text) {
+        return new Entry("en", Transcription.emptyTranscription().appendSection(
+                0, 1, text, "FS1"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        TranscriptionCache cache = new TranscriptionCache(2);
+        String k1 = TranscriptionCache.makeKey("d1", "en", "eng");
+        String k2 = TranscriptionCache.makeKey("d2", "en", "eng");
+        String k3 = TranscriptionCache.makeKey("d3",
+                TranscriptionCache.AUTO_LANGUAGE, null);
+        cache.put(k1, makeEntry("one"));
+        cache.put(k2, makeEntry("two"));
+        assertNotNull(cache.get(k1));
+        cache.put(k3, makeEntry("three"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(k2));
+        assertEquals("one", cache.get(k1).transcription.getText());
+        assertEquals("three", cache.get(k3).transcription.getText());
+        assertEquals(3, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testSizeBoundEviction() {
+        long entrySize = makeEntry("one").estimatedSize;
+        TranscriptionCache cache = new TranscriptionCache(10,
+                2 * entrySize + entrySize / 2);
+        String k1 = TranscriptionCache.makeKey("d1", "en", "eng");
+        String k2 = TranscriptionCache.makeKey("d2", "en", "eng");
+        String k3 = TranscriptionCache.makeKey("d3", "en", "eng");
+        cache.put(k1, makeEntry("one"));
+        cache.put(k2, makeEntry("two"));
+        cache.put(k3, makeEntry("six"));
+
+        assertEquals(2, cache.size());
+        assertEquals(2 * entrySize, cache.getEstimatedSize());
+        assertNull(cache.get(k1));
+        assertEquals(1, cache.getEvictionCount());
+
+        // never cached: it would evict everything else
+        Transcription large = Transcription.emptyTranscription();
+        for (int i = 0; i < 100; i++) {
+            large.appendSection(i, i + 1, "word", "FS1");
+        }
+        cache.put(k1, new Entry("en", large));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(k1));
+    }
+
+    @Test
+    public void testDisabledCache() {
+        TranscriptionCache cache = new TranscriptionCache(0);
+        String key = TranscriptionCache.makeKey("d1", "en", "eng");
+        cache.put(key, makeEntry("one"));
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+    }
+}
@@ -2,15 +2,29 @@ package org.nuxeo.vocapia.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 import org.nuxeo.vocapia.service.Transcription;
 import org.nuxeo.vocapia.service.xml.AudioDoc;
+import org.nuxeo.vocapia.service.xml.AudioDocReader;
+import org.nuxeo.vocapia.service.xml.RawTranscriptionArchive;
+import org.nuxeo.vocapia.service.xml.RawTranscriptionArchive.Part;
 import org.nuxeo.vocapia.service.xml.Segment;
 
 public class TestTranscriptionParsing {
@@ -57,4 +71,80 @@ public class TestTranscriptionParsing {
         String lang = parsedDoc.getLanguage();
         assertEquals(lang, "ara");
     }
+
+    @Test
+    public void testStreamingParserMatchesJAXB() throws JAXBException,
+            XMLStreamException {
+        for (String resource : new String[] { "/afp_ar_news_1_trans.xml",
+                "/fake_english_transcription.xml", "/afp_ar_news_1_lid.xml" }) {
+            Transcription expected = AudioDoc.readFrom(
+                    getClass().getResourceAsStream(resource)).asTranscription();
+            Transcription streamed = AudioDocReader.readTranscription(
+                    getClass().getResourceAsStream(resource));
+            assertEquals(expected.getSections(), streamed.getSections());
+            assertEquals(expected.getText(), streamed.getText());
+        }
+    }
+
+    protected File copyResource(String resource) throws IOException {
+        File file = File.createTempFile("raw-", ".xml");
+        file.deleteOnExit();
+        InputStream in = getClass().getResourceAsStream(resource);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            IOUtils.copy(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void testRawArchiveResegmentation() throws Exception {
+        File raw = copyResource("/afp_ar_news_1_trans.xml");
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        RawTranscriptionArchive.write(
+                Arrays.asList(new Part(600, raw), new Part(0, raw)), archive);
+        byte[] bytes = archive.toByteArray();
+
+        Transcription single = AudioDocReader.readTranscription(getClass().getResourceAsStream(
+                "/afp_ar_news_1_trans.xml"));
+        Transcription rebuilt = RawTranscriptionArchive.readTranscription(
+                new ByteArrayInputStream(bytes), Segment.MAX_SEGMENT_DURATION);
+        int count = single.getSections().size();
+        assertEquals(2 * count, rebuilt.getSections().size());
+        assertEquals(single.getSections(),
+                rebuilt.getSections().subList(0, count));
+        Map<String, Object> first = single.getSections().get(0);
+        Map<String, Object> shifted = rebuilt.getSections().get(count);
+        assertEquals(
+                (Double) first.get(Transcription.TIMECODE_START) + 600,
+                (Double) shifted.get(Transcription.TIMECODE_START), 1e-6);
+        assertEquals(first.get(Transcription.TEXT),
+                shifted.get(Transcription.TEXT));
+
+        Transcription finer = RawTranscriptionArchive.readTranscription(
+                new ByteArrayInputStream(bytes), 1.0);
+        assertTrue(finer.getSections().size() > rebuilt.getSections().size());
+    }
+
+    @Test
+    public void testStreamingLanguageIdOutput() throws XMLStreamException {
+        InputStream stream = getClass().getResourceAsStream(
+                "/afp_ar_news_1_lid.xml");
+        assertEquals(AudioDocReader.readLanguage(stream), "ara");
+    }
+
+    @Test
+    public void testJobId() throws XMLStreamException {
+        assertEquals("42", AudioDocReader.readJobId(" 42\n"));
+        assertEquals("42", AudioDocReader.readJobId("<job id=\"42\"/>"));
+        assertEquals("42",
+                AudioDocReader.readJobId("<result jobid=\"42\"></result>"));
+        assertEquals("42", AudioDocReader.readJobId("<jobid> 42 </jobid>"));
+        assertEquals("42", AudioDocReader.readJobId(
+                "<?xml version=\"1.0\"?>\n<job>\n  <id>42</id>\n</job>"));
+        assertEquals(null, AudioDocReader.readJobId("<job/>"));
+    }
 }
@@ -0,0 +1,64 @@
+package org.nuxeo.vocapia.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.nuxeo.ecm.core.api.DocumentLocation;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.impl.DocumentLocationImpl;
+import org.nuxeo.vocapia.service.TranscriptionStatusRegistry;
+import org.nuxeo.vocapia.service.TranscriptionStatusRegistry.Entry;
+import org.nuxeo.vocapia.service.TranscriptionWork.PipelineStage;
+
+public class TestTranscriptionStatusRegistry {
+
+    protected static final String QUEUE = "speech_transcription";
+
+    protected static DocumentLocation doc(String id) {
+        return new DocumentLocationImpl("default", new IdRef(id));
+    }
+
+    @Test
+    public void testPositionsFollowTheQueue() {
+        TranscriptionStatusRegistry registry = new TranscriptionStatusRegistry();
+        registry.scheduled(doc("a"), QUEUE, null);
+        registry.scheduled(doc("b"), QUEUE, null);
+        registry.scheduled(doc("c"), QUEUE, null);
+        // already scheduled: ignored as by the WorkManager
+        registry.scheduled(doc("b"), QUEUE, null);
+        assertEquals(3, registry.getQueueSize(QUEUE));
+        assertEquals(3, registry.getPosition(registry.get(doc("c"))));
+
+        registry.started(doc("a"), null);
+        registry.setStatus(doc("a"), null, "language_detection");
+        Entry a = registry.get(doc("a"));
+        assertTrue(a.isRunning());
+        assertEquals("language_detection", a.getStatus());
+        assertEquals(2, registry.getQueueSize(QUEUE));
+        assertEquals(1, registry.getPosition(registry.get(doc("b"))));
+        assertEquals(2, registry.getPosition(registry.get(doc("c"))));
+
+        registry.finished(doc("a"), null);
+        assertNull(registry.get(doc("a")));
+        assertEquals(2, registry.getQueueSize(QUEUE));
+    }
+
+    @Test
+    public void testPipelineStageHandOff() {
+        TranscriptionStatusRegistry registry = new TranscriptionStatusRegistry();
+        registry.scheduled(doc("a"), "speech_transcription_extraction",
+                PipelineStage.EXTRACTION);
+        registry.started(doc("a"), PipelineStage.EXTRACTION);
+        // the next stage is scheduled before the current one finishes
+        registry.scheduled(doc("a"), QUEUE, PipelineStage.TRANSCRIPTION);
+        registry.finished(doc("a"), PipelineStage.EXTRACTION);
+        Entry entry = registry.get(doc("a"));
+        assertEquals(PipelineStage.TRANSCRIPTION, entry.stage);
+        assertFalse(entry.isRunning());
+        assertEquals(1, registry.getQueueSize(QUEUE));
+        assertEquals(0, registry.getQueueSize("speech_transcription_extraction"));
+    }
+}